@@ -0,0 +1,23 @@
+plugins {
+    id("me.champeau.gradle.jmh") version "0.4.8"
+}
+
+group = "de.bentolor.sampleproject.benchmarks"
+
+dependencies {
+    compile(project(":toolbox"))
+}
+
+// Run with `./gradlew :benchmarks:jmh`, select benchmarks with i.e. `-PjmhInclude=TemplateFormatter`
+jmh {
+    jmhVersion = "1.21"
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    // allocation rate per operation next to the timings
+    profilers = listOf("gc")
+    resultFormat = "JSON"
+    resultsFile = file("$buildDir/reports/jmh/results.json")
+    duplicateClassesStrategy = DuplicatesStrategy.WARN
+    project.findProperty("jmhInclude")?.let { include = listOf(it.toString()) }
+}
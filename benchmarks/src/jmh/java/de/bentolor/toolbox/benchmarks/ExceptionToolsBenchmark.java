@@ -0,0 +1,156 @@
+package de.bentolor.toolbox.benchmarks;
+
+import de.bentolor.toolbox.ExceptionTools;
+import de.bentolor.toolbox.IdGenerators;
+import de.bentolor.toolbox.SourceCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Describing an exception with the code around the line it has been thrown at, and reporting it.
+ * <p>
+ * The code is read from the sources of this module. Set the system property <code>benchmarks.sourceDir</code> if the
+ * benchmarks are not run from the module directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExceptionToolsBenchmark {
+
+    private static final String PACKAGE = "de.bentolor.toolbox.benchmarks";
+
+    private File[] sourcePaths;
+    private Exception exception;
+    private File[] generatedPaths;
+    private StackTraceElement generatedSpot;
+
+    @Setup
+    public void setUp() throws IOException {
+        sourcePaths = new File[]{new File(System.getProperty("benchmarks.sourceDir", "src/jmh/java"))};
+        exception = ExceptionToolsBenchmark.createException();
+        if (ExceptionTools.describeThrowable(sourcePaths, exception, PACKAGE) == null) {
+            throw new IllegalStateException("Sources not found in " + sourcePaths[0].getAbsolutePath());
+        }
+
+        // a generated source of 10k lines
+        File dir = File.createTempFile("generated", "");
+        if (!dir.delete() || !new File(dir, "generated").mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        dir.deleteOnExit();
+        File source = new File(dir, "generated" + File.separatorChar + "Big.java");
+        source.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(source), StandardCharsets.UTF_8);
+        try {
+            writer.write("package generated;\n\nclass Big {\n");
+            for (int i = 0; i < 10000; i++) {
+                writer.write("    private static final String CONSTANT_" + i + " = \"generated value number " + i + "\";\n");
+            }
+            writer.write("}\n");
+        } finally {
+            writer.close();
+        }
+        generatedPaths = new File[]{dir};
+        generatedSpot = new StackTraceElement("generated.Big", "foo", "Big.java", 5000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ExceptionTools.setSourceCache(new SourceCache());
+    }
+
+    private static Exception createException() {
+        try {
+            throw new IllegalStateException("Benchmark problem");
+        } catch (IllegalStateException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Code snippet of a large file read from the {@link ExceptionTools#getSourceCache() source cache}
+     */
+    @Benchmark
+    public ExceptionTools.ProblemDetails snippetOfGeneratedSource() {
+        return ExceptionTools.retrieveProblemDetails(null, generatedSpot, generatedPaths, 5);
+    }
+
+    /**
+     * Code snippet of a large file read from disk on every call
+     */
+    @Benchmark
+    public ExceptionTools.ProblemDetails snippetOfGeneratedSourceUncached() {
+        final SourceCache cache = ExceptionTools.getSourceCache();
+        ExceptionTools.setSourceCache(null);
+        try {
+            return ExceptionTools.retrieveProblemDetails(null, generatedSpot, generatedPaths, 5);
+        } finally {
+            ExceptionTools.setSourceCache(cache);
+        }
+    }
+
+    @Benchmark
+    public ExceptionTools.ProblemDetails describeThrowable() {
+        return ExceptionTools.describeThrowable(sourcePaths, exception, PACKAGE);
+    }
+
+    @Benchmark
+    public String[] describeThrowableAsciiArt() {
+        return ExceptionTools.describeThrowableAsciiArt(sourcePaths, exception, PACKAGE);
+    }
+
+    @Benchmark
+    public String describeThrowableHtml() {
+        return ExceptionTools.describeThrowableHtml(sourcePaths, exception, PACKAGE);
+    }
+
+    @Benchmark
+    public String generateIdSequential() {
+        return IdGenerators.sequential().nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String generateIdSequentialContended() {
+        return IdGenerators.sequential().nextId();
+    }
+
+    /**
+     * The former default, based on <code>SecureRandom</code>
+     */
+    @Benchmark
+    public String generateIdRandomUuid() {
+        return IdGenerators.randomUuid().nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String generateIdRandomUuidContended() {
+        return IdGenerators.randomUuid().nextId();
+    }
+
+    /**
+     * ID generation and message building. Logged on trace level, which is disabled by default, so the log output itself is
+     * not measured.
+     */
+    @Benchmark
+    public String report() {
+        return ExceptionTools.report(Level.FINEST, "Benchmark report", exception);
+    }
+}
@@ -0,0 +1,39 @@
+package de.bentolor.toolbox.benchmarks;
+
+import de.bentolor.toolbox.StringTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Abbreviating texts shorter and longer than the maximum length with {@link StringTools#abbreviate(int, Object)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StringToolsBenchmark {
+
+    private final String shortText = "Short text";
+    private final String longText = "A text which is considerably longer than the maximum length allowed for it";
+    private final StringBuilder builder = new StringBuilder(longText);
+
+    @Benchmark
+    public String abbreviateShort() {
+        return StringTools.abbreviate(40, shortText);
+    }
+
+    @Benchmark
+    public String abbreviateLong() {
+        return StringTools.abbreviate(40, longText);
+    }
+
+    @Benchmark
+    public String abbreviateObject() {
+        return StringTools.abbreviate(40, builder);
+    }
+}
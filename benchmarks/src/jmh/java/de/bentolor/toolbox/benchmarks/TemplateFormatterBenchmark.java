@@ -0,0 +1,151 @@
+package de.bentolor.toolbox.benchmarks;
+
+import de.bentolor.toolbox.CompiledTemplate;
+import de.bentolor.toolbox.ExpressionScriptEngineProvider;
+import de.bentolor.toolbox.TemplateFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of simple tokens, nested property paths and script sections by
+ * {@link TemplateFormatter#formatCompiled(String, Map)}, compared with precompiled and typed templates,
+ * {@link TemplateFormatter#format(String, Map)} and the string replacement of
+ * {@link TemplateFormatter#formatProperties(String, Map)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TemplateFormatterBenchmark {
+
+    static final String SIMPLE = "Dear ${title} ${name}, your order ${id} of ${count} items has been shipped.";
+    static final String NESTED = "Dear ${order.customer.name}, your order ${order.id} to ${order.customer.address.city}"
+            + " of ${order.count} items has been shipped.";
+    static final String SCRIPT = "Dear ${name}, <bsh>count > 1 ? 'your items have' : 'your item has'</bsh> been shipped.";
+
+    /**
+     * Render into per-thread buffers
+     */
+    @Param({"false", "true"})
+    public boolean reuseRenderBuffers;
+
+    private TemplateFormatter formatter;
+    private Map<String, Object> parameters;
+    private CompiledTemplate compiledNested;
+    private CompiledTemplate typedNested;
+
+    @Setup
+    public void setUp() {
+        formatter = TemplateFormatter.builder().scripting(true).scriptEngineProvider(new ExpressionScriptEngineProvider())
+                .reuseRenderBuffers(reuseRenderBuffers).build();
+        parameters = new HashMap<String, Object>();
+        parameters.put("title", "Mrs.");
+        parameters.put("name", "Smith");
+        parameters.put("id", 4711L);
+        parameters.put("count", 3);
+        parameters.put("order", new Order(4711L, 3, new Customer("Smith", new Address("Berlin"))));
+
+        compiledNested = formatter.compile(NESTED);
+        Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+        types.put("order", Order.class);
+        typedNested = formatter.compile(NESTED, types);
+    }
+
+    @Benchmark
+    public String simpleTokens() {
+        return formatter.formatCompiled(SIMPLE, parameters);
+    }
+
+    @Benchmark
+    public String nestedPaths() {
+        return formatter.formatCompiled(NESTED, parameters);
+    }
+
+    @Benchmark
+    public String scripts() {
+        return formatter.formatCompiled(SCRIPT, parameters);
+    }
+
+    @Benchmark
+    public String nestedPathsCompiled() {
+        return compiledNested.render(parameters);
+    }
+
+    @Benchmark
+    public String nestedPathsTyped() {
+        return typedNested.render(parameters);
+    }
+
+    @Benchmark
+    public String nestedPathsFormat() {
+        return formatter.format(NESTED, parameters);
+    }
+
+    @Benchmark
+    public String nestedPathsLegacy() {
+        return formatter.formatProperties(NESTED, parameters);
+    }
+
+    public static final class Order {
+        private final long id;
+        private final int count;
+        private final Customer customer;
+
+        Order(long id, int count, Customer customer) {
+            this.id = id;
+            this.count = count;
+            this.customer = customer;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public Customer getCustomer() {
+            return customer;
+        }
+    }
+
+    public static final class Customer {
+        private final String name;
+        private final Address address;
+
+        Customer(String name, Address address) {
+            this.name = name;
+            this.address = address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+    }
+
+    public static final class Address {
+        private final String city;
+
+        Address(String city) {
+            this.city = city;
+        }
+
+        public String getCity() {
+            return city;
+        }
+    }
+}
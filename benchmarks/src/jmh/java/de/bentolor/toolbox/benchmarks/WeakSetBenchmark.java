@@ -0,0 +1,57 @@
+package de.bentolor.toolbox.benchmarks;
+
+import de.bentolor.toolbox.WeakSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding to and querying a {@link WeakSet} shared by four threads. The set itself is not thread-safe, so it is wrapped like
+ * callers have to do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class WeakSetBenchmark {
+
+    private static final int SIZE = 1024;
+
+    /**
+     * Strongly referenced, so they stay in the set
+     */
+    private Object[] elements;
+    private Set<Object> set;
+
+    @Setup
+    public void setUp() {
+        elements = new Object[SIZE];
+        set = Collections.synchronizedSet(new WeakSet<Object>());
+        for (int i = 0; i < SIZE; i++) {
+            elements[i] = new Object();
+            if (i % 2 == 0) {
+                set.add(elements[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean add() {
+        return set.add(elements[ThreadLocalRandom.current().nextInt(SIZE)]);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return set.contains(elements[ThreadLocalRandom.current().nextInt(SIZE)]);
+    }
+}
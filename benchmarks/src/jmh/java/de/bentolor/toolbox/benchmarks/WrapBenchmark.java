@@ -0,0 +1,48 @@
+package de.bentolor.toolbox.benchmarks;
+
+import de.bentolor.toolbox.Wrap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating collections with {@link Wrap}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WrapBenchmark {
+
+    private final String[] values = {"alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta"};
+    private final Object[] keyValues = {"alpha", 1, "beta", 2, "gamma", 3, "delta", 4};
+    private final List<String> list = Arrays.asList(values);
+
+    @Benchmark
+    public List<String> intoList() {
+        return Wrap.intoList(values);
+    }
+
+    @Benchmark
+    public Set<String> intoSet() {
+        return Wrap.intoSet(values);
+    }
+
+    @Benchmark
+    public Map<String, Integer> intoMap() {
+        return Wrap.intoMap(keyValues);
+    }
+
+    @Benchmark
+    public List<String> iterIntoList() {
+        return Wrap.iterIntoList(list.iterator());
+    }
+}
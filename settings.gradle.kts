@@ -1,2 +1,2 @@
 rootProject.name = "sample-project"
-include("toolbox", "core", "module1", "module2")
\ No newline at end of file
+include("toolbox", "core", "module1", "module2", "benchmarks")
\ No newline at end of file
@@ -0,0 +1,461 @@
+package de.bentolor.toolbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Reports exceptions to {@link ExceptionTools#LOG} on a background thread. The caller only generates the reference ID and
+ * enqueues the exception; formatting and writing the stack trace happens on the writer thread, which drains the queue in
+ * batches. During an error storm request threads therefore don't wait on the logging backend.
+ * <p>
+ * The queue is a bounded, lock-free ring buffer. What happens to a report finding it full is decided by the
+ * {@link OverflowPolicy}; reports lost this way are counted and summarized in the log by the writer.
+ * <pre>
+ * ExceptionTools.setAsyncReporter(new AsyncExceptionReporter(4096, AsyncExceptionReporter.OverflowPolicy.DROP_OLDEST));
+ * ...
+ * String id = ExceptionTools.report(e);
+ * </pre>
+ *
+ * @see ExceptionTools#setAsyncReporter(AsyncExceptionReporter)
+ */
+public final class AsyncExceptionReporter {
+
+    /**
+     * What to do with a report if the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest queued report to make room for the new one
+         */
+        DROP_OLDEST,
+        /**
+         * Keep only one of every <code>sampleRate</code> overflowing reports, replacing the oldest queued one, and discard
+         * the others
+         */
+        SAMPLE,
+        /**
+         * Wait until the writer made room for the report
+         */
+        BLOCK
+    }
+
+    /**
+     * Default capacity of the queue ({@value})
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+    /**
+     * Default rate of {@link OverflowPolicy#SAMPLE} ({@value})
+     */
+    public static final int DEFAULT_SAMPLE_RATE = 16;
+    /**
+     * Maximum number of reports written per batch ({@value})
+     */
+    static final int BATCH_SIZE = 64;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final OverflowPolicy policy;
+    private final int sampleRate;
+
+    // ring buffer after D. Vyukov: a slot may be written if its sequence equals the tail position and read if it equals
+    // the head position + 1
+    private final int mask;
+    private final AtomicReferenceArray<Event> events;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    /**
+     * Reports written or dropped, i.e. no longer pending. Only counted by the writer and overflowing callers.
+     */
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong droppedLogged = new AtomicLong();
+
+    /**
+     * Creates a reporter with {@link #DEFAULT_CAPACITY} dropping the oldest reports on overflow.
+     */
+    public AsyncExceptionReporter() {
+        this(DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param capacity the number of reports the queue can hold, rounded up to a power of two
+     * @param policy   what to do if the queue is full
+     */
+    public AsyncExceptionReporter(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * @param capacity   the number of reports the queue can hold, rounded up to a power of two
+     * @param policy     what to do if the queue is full
+     * @param sampleRate one of this many overflowing reports is kept by {@link OverflowPolicy#SAMPLE}
+     */
+    public AsyncExceptionReporter(int capacity, OverflowPolicy policy, int sampleRate) {
+        this(capacity, policy, sampleRate, true);
+    }
+
+    AsyncExceptionReporter(int capacity, OverflowPolicy policy, int sampleRate, boolean startWriter) {
+        if (capacity < 2 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be within 2 and 2^30: " + capacity);
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Overflow policy must not be null");
+        }
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+        }
+        this.policy = policy;
+        this.sampleRate = sampleRate;
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.events = new AtomicReferenceArray<Event>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "ExceptionTools-reporter");
+        writer.setDaemon(true);
+        if (startWriter) {
+            writer.start();
+        }
+    }
+
+    /**
+     * Generates an ID and enqueues the exception for being logged in {@link ExceptionTools#LOG}. Returns without waiting for
+     * the log unless the queue is full and the policy is {@link OverflowPolicy#BLOCK}. After
+     * {@link #close(long, TimeUnit)} the exception is logged by the calling thread.
+     *
+     * @param logLevel  The log level/severity to use.
+     * @param message   An additional message to describe this problem report, may be <code>null</code>.
+     * @param exception The exception you want to report / log.
+     * @return The ID used to identify this exception within the log.
+     * @see ExceptionTools#report(Level, String, Throwable)
+     */
+    public String report(Level logLevel, String message, Throwable exception) {
+        final String id = ExceptionTools.generateID();
+        report(logLevel, id, message, exception);
+        return id;
+    }
+
+    void report(Level logLevel, String id, String message, Throwable exception) {
+        final Event event = new Event(logLevel, id, message, exception);
+        if (closed) {
+            event.write();
+            return;
+        }
+        submitted.incrementAndGet();
+        if (!offer(event) && !overflow(event)) {
+            processed.incrementAndGet();
+        }
+        if (closed) {
+            // closed meanwhile: the writer may have stopped before seeing this report
+            drainRemaining();
+        } else if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Applies the overflow policy.
+     *
+     * @return whether the event has been enqueued
+     */
+    private boolean overflow(Event event) {
+        final long overflow = overflows.incrementAndGet();
+        if (policy == OverflowPolicy.BLOCK) {
+            return block(event);
+        }
+        if (policy == OverflowPolicy.SAMPLE && overflow % sampleRate != 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        while (!offer(event)) {
+            if (poll() != null) {
+                dropped.incrementAndGet();
+                processed.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the writer to free a slot, or writes the event synchronously once closed.
+     *
+     * @return whether the event has been enqueued
+     */
+    private boolean block(Event event) {
+        final long start = System.nanoTime();
+        try {
+            while (!offer(event)) {
+                if (closed) {
+                    event.write();
+                    written.incrementAndGet();
+                    return false;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            }
+            return true;
+        } finally {
+            blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private boolean offer(Event event) {
+        long position = tail.get();
+        while (true) {
+            final int index = (int) position & mask;
+            final long distance = sequences.get(index) - position;
+            if (distance == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    events.lazySet(index, event);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (distance < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private Event poll() {
+        long position = head.get();
+        while (true) {
+            final int index = (int) position & mask;
+            final long distance = sequences.get(index) - (position + 1);
+            if (distance == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    final Event event = events.get(index);
+                    events.lazySet(index, null);
+                    sequences.lazySet(index, position + mask + 1);
+                    return event;
+                }
+                position = head.get();
+            } else if (distance < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        final List<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+        while (true) {
+            if (drain(batch) > 0) {
+                continue;
+            }
+            if (closed) {
+                if (drain(batch) == 0) {
+                    return;
+                }
+                continue;
+            }
+            writerParked = true;
+            if (getQueueSize() == 0 && !closed) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            writerParked = false;
+        }
+    }
+
+    /**
+     * Writes one batch of queued reports. May be called concurrently: each report is taken from the queue by one caller only.
+     *
+     * @return the number of reports written
+     */
+    int drain(List<Event> batch) {
+        Event event;
+        while (batch.size() < BATCH_SIZE && (event = poll()) != null) {
+            batch.add(event);
+        }
+        final int size = batch.size();
+        if (size == 0) {
+            return 0;
+        }
+        for (Event queued : batch) {
+            try {
+                queued.write();
+            } catch (RuntimeException e) {
+                // a broken appender must not kill the writer
+            }
+        }
+        batch.clear();
+        written.addAndGet(size);
+        processed.addAndGet(size);
+        batches.incrementAndGet();
+
+        final long lost = dropped.get();
+        final long logged = droppedLogged.get();
+        if (lost > logged && droppedLogged.compareAndSet(logged, lost)) {
+            ExceptionTools.LOG.warn((lost - logged) + " exception reports dropped, queue overflowed");
+        }
+        return size;
+    }
+
+    /**
+     * Writes all queued reports on the calling thread.
+     */
+    private void drainRemaining() {
+        final List<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+        while (drain(batch) > 0) {
+            // until empty
+        }
+    }
+
+    /**
+     * Waits until all reports submitted so far are written or dropped.
+     *
+     * @return whether the reports have been processed within the timeout
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        final long target = submitted.get();
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (processed.get() < target) {
+            if (System.nanoTime() - deadline >= 0 || !writer.isAlive()) {
+                return processed.get() >= target;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting reports and waits for the writer to write the queued ones. Reports submitted afterwards are logged
+     * synchronously. Reports still queued once the writer stopped are written by the calling thread.
+     *
+     * @return whether the queue has been written within the timeout
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(writer);
+        writer.join(Math.max(1, unit.toMillis(timeout)));
+        if (writer.isAlive()) {
+            return false;
+        }
+        drainRemaining();
+        return true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    /**
+     * The number of reports the queue can hold.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * The number of reports currently waiting for the writer.
+     */
+    public int getQueueSize() {
+        final long size = tail.get() - head.get();
+        return size < 0 ? 0 : (int) Math.min(size, getCapacity());
+    }
+
+    /**
+     * Number of reports accepted since creation.
+     */
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * Number of reports written to the log.
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * Number of reports which found the queue full.
+     */
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    /**
+     * Number of reports lost by {@link OverflowPolicy#DROP_OLDEST} or {@link OverflowPolicy#SAMPLE}.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Total time callers waited for room in the queue with {@link OverflowPolicy#BLOCK} in nanoseconds.
+     */
+    public long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+
+    /**
+     * Number of batches written.
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncExceptionReporter[policy=" + policy + ", capacity=" + getCapacity() + ", queued=" + getQueueSize()
+                + ", submitted=" + getSubmittedCount() + ", written=" + getWrittenCount() + ", overflows="
+                + getOverflowCount() + ", dropped=" + getDroppedCount() + ", blockedNanos=" + getBlockedNanos()
+                + ", batches=" + getBatchCount() + ']';
+    }
+
+    /**
+     * A queued report.
+     */
+    static final class Event {
+        final Level level;
+        final String id;
+        final String message;
+        final Throwable exception;
+
+        Event(Level level, String id, String message, Throwable exception) {
+            this.level = level;
+            this.id = id;
+            this.message = message;
+            this.exception = exception;
+        }
+
+        void write() {
+            ExceptionTools.log(level, id, message, exception);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package de.bentolor.toolbox;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Renders one {@link CompiledTemplate} for many parameter maps on an executor. At most <code>maxInFlight</code> renders are
+ * pending at any time: the inputs are pulled from their iterator only as fast as results are consumed, so input sources larger
+ * than memory can be streamed through.
+ * <p>
+ * The consumer is always called on the calling thread, either in input order or in completion order.
+ */
+final class BulkRenderer {
+
+    /**
+     * Number of pending renders per worker thread if no explicit window is set.
+     */
+    static final int IN_FLIGHT_PER_THREAD = 4;
+
+    private final CompiledTemplate template;
+    private final Executor executor;
+    private final boolean ordered;
+    private final int maxInFlight;
+
+    /**
+     * Pending renders in submission order.
+     */
+    private final ArrayDeque<RenderTask> pending = new ArrayDeque<RenderTask>();
+    /**
+     * Finished renders in completion order. Only used if not <code>ordered</code>.
+     */
+    private final BlockingQueue<RenderTask> completed = new LinkedBlockingQueue<RenderTask>();
+    private int inFlight;
+
+    BulkRenderer(CompiledTemplate template, Executor executor, boolean ordered, int maxInFlight) {
+        if (executor == null) {
+            throw new IllegalArgumentException("No executor passed");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one render must be allowed in flight: " + maxInFlight);
+        }
+        this.template = template;
+        this.executor = executor;
+        this.ordered = ordered;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * A window size matching the parallelism of the passed executor.
+     */
+    static int defaultMaxInFlight(Executor executor) {
+        final int threads = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        return BulkRenderer.IN_FLIGHT_PER_THREAD * threads;
+    }
+
+    /**
+     * Renders all inputs and passes the results to the consumer.
+     *
+     * @return the number of rendered inputs
+     */
+    long run(Iterator<? extends Map<String, Object>> inputs, Consumer<? super String> consumer) {
+        long count = 0;
+        try {
+            while (inputs.hasNext()) {
+                if (inFlight == maxInFlight) {
+                    consumer.accept(next());
+                    count++;
+                }
+                submit(inputs.next());
+            }
+            while (inFlight > 0) {
+                consumer.accept(next());
+                count++;
+            }
+            return count;
+        } finally {
+            cancelPending();
+        }
+    }
+
+    private void submit(final Map<String, Object> parameters) {
+        final RenderTask task = new RenderTask(new Callable<String>() {
+            @Override
+            public String call() {
+                return template.render(parameters);
+            }
+        });
+        pending.add(task);
+        inFlight++;
+        executor.execute(task);
+    }
+
+    /**
+     * Waits for the next result, the oldest one if ordered.
+     */
+    private String next() {
+        try {
+            final RenderTask task;
+            if (ordered) {
+                task = pending.poll();
+            } else {
+                task = completed.take();
+                pending.remove(task);
+            }
+            inFlight--;
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for rendered templates", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Rendering failed", cause);
+        }
+    }
+
+    /**
+     * Cancels renders left over by a failing render or consumer.
+     */
+    private void cancelPending() {
+        RenderTask task;
+        while ((task = pending.poll()) != null) {
+            task.cancel(false);
+        }
+    }
+
+    private final class RenderTask extends FutureTask<String> {
+        RenderTask(Callable<String> render) {
+            super(render);
+        }
+
+        @Override
+        protected void done() {
+            if (!ordered) {
+                completed.add(this);
+            }
+        }
+    }
+}
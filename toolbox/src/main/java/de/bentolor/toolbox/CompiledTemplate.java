@@ -0,0 +1,1264 @@
+package de.bentolor.toolbox;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A format string parsed once by {@link TemplateFormatter#compile(String)}. The template is split into literal segments, property
+ * tokens with their pre-split property paths and script sections. Rendering walks this structure once and writes everything into
+ * a single presized <code>StringBuilder</code> or streams it into any <code>Appendable</code>.
+ * <p>
+ * Problems found while parsing are reported by {@link #getAnalysis()}. The buffer size is estimated from the length of the
+ * literal text plus a running estimate of the size of the token values and script results seen so far.
+ * <p>
+ * Instances are immutable and may be shared between threads. They stay bound to the formatter which created them, so changes to
+ * its settings apply to subsequent renders.
+ */
+public final class CompiledTemplate {
+
+    private final TemplateFormatter formatter;
+    private final String template;
+    private final Segment[] segments;
+    private final int tokenCount;
+    /**
+     * Number of distinct token texts
+     */
+    private final int distinctTokens;
+    private final boolean containsScripts;
+    /**
+     * The template is well-formed, so {@link #renderCompatible(Map)} renders it like
+     * {@link TemplateFormatter#formatProperties(String, Map)}.
+     */
+    private final boolean formatCompatible;
+    private final TemplateAnalysis analysis;
+    private final Set<String> objectNames;
+    /**
+     * Expected length of the token values and script results, adapted to the previous renders. Updated racily by intention.
+     */
+    private int variableSizeEstimate;
+
+    CompiledTemplate(TemplateFormatter formatter, String template) {
+        this(formatter, template, null);
+    }
+
+    /**
+     * @param parameterTypes the declared types of the named objects. Property paths of those objects are bound to direct
+     *                       accessor calls. May be <code>null</code>
+     */
+    CompiledTemplate(TemplateFormatter formatter, String template, Map<String, Class<?>> parameterTypes) {
+        this.formatter = formatter;
+        this.template = template;
+        final Map<String, Class<?>> types = parameterTypes != null ? parameterTypes
+                : Collections.<String, Class<?>>emptyMap();
+
+        List<Segment> parsed = new ArrayList<Segment>();
+        Map<String, Integer> tokenSources = new HashMap<String, Integer>();
+        TemplateAnalysis.Collector collector = new TemplateAnalysis.Collector();
+        final boolean signature = parameterTypes != null;
+        int index = 0;
+        int startScript = template.indexOf(TemplateFormatter.SCRIPT_START_TAG, index);
+        int endScript = template.indexOf(TemplateFormatter.SCRIPT_END_TAG, index);
+        boolean scripts = false;
+        while (startScript >= 0 && endScript > startScript) {
+            parseProperties(formatter, template, index, startScript, parsed, tokenSources, types, signature, collector);
+
+            final int scriptStart = startScript + TemplateFormatter.SCRIPT_START_TAG.length();
+            List<Segment> scriptBody = new ArrayList<Segment>();
+            parseProperties(formatter, template, scriptStart, endScript, scriptBody, tokenSources, types, signature,
+                    collector);
+            parsed.add(new ScriptSegment(scriptBody.toArray(new Segment[scriptBody.size()])));
+            collector.scriptBlock(template.substring(scriptStart, endScript));
+            scripts = true;
+
+            index = endScript + TemplateFormatter.SCRIPT_END_TAG.length();
+            startScript = template.indexOf(TemplateFormatter.SCRIPT_START_TAG, index);
+            endScript = template.indexOf(TemplateFormatter.SCRIPT_END_TAG, index);
+        }
+        if (startScript >= 0) {
+            collector.unclosedScript(startScript);
+        }
+        parseProperties(formatter, template, index, template.length(), parsed, tokenSources, types, signature, collector);
+
+        this.segments = parsed.toArray(new Segment[parsed.size()]);
+        this.containsScripts = scripts;
+        this.tokenCount = countTokens(segments);
+        this.distinctTokens = tokenSources.size();
+        final Set<String> names = new LinkedHashSet<String>();
+        collectObjectNames(segments, names);
+        this.objectNames = Collections.unmodifiableSet(names);
+        int literalLength = 0;
+        int scriptCount = 0;
+        for (Segment segment : segments) {
+            if (segment instanceof Literal) {
+                literalLength += ((Literal) segment).text.length();
+            } else if (segment instanceof ScriptSegment) {
+                scriptCount++;
+            }
+        }
+        this.analysis = collector.build(literalLength);
+        this.formatCompatible = analysis.getUnclosedTokenPositions().isEmpty()
+                && !template.contains(TemplateFormatter.PROPERTY_START_TAG + TemplateFormatter.PROPERTY_CLOSE_TAG)
+                && !template.contains(TemplateFormatter.PROPERTY_START_TAG + '.');
+        this.variableSizeEstimate = 16 * (tokenCount + scriptCount);
+    }
+
+    /**
+     * The original format string.
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * The formatter this template has been compiled by.
+     */
+    public TemplateFormatter getFormatter() {
+        return formatter;
+    }
+
+    /**
+     * The problems found while parsing this template and some statistics.
+     */
+    public TemplateAnalysis getAnalysis() {
+        return analysis;
+    }
+
+    /**
+     * The names of the objects referenced by tokens, in order of appearance. Callers may use them to build only the parameters
+     * actually needed. Script sections may use further objects.
+     */
+    public Set<String> getObjectNames() {
+        return objectNames;
+    }
+
+    /**
+     * The expected length of the next rendered text: the length of the literal text plus the estimated size of the token
+     * values and script results, with some headroom.
+     */
+    public int getEstimatedSize() {
+        final int variable = variableSizeEstimate;
+        return analysis.getLiteralLength() + variable + (variable >> 2);
+    }
+
+    /**
+     * Does the template contain {@link TemplateFormatter#SCRIPT_START_TAG script sections}?
+     */
+    public boolean containsScripts() {
+        return containsScripts;
+    }
+
+    /**
+     * Renders this template with the passed named objects. The result equals the one of
+     * {@link TemplateFormatter#formatCompiled(String, Map)} for the same format string.
+     *
+     * @param parameters the named objects referenced by the template. May be <code>null</code>
+     * @return the formatted text
+     */
+    public String render(Map<String, Object> parameters) {
+        final boolean reuse = formatter.isReuseRenderBuffers();
+        final int estimatedSize = getEstimatedSize();
+        final StringBuilder result = reuse ? RenderBuffers.acquire(estimatedSize) : new StringBuilder(estimatedSize);
+        try {
+            renderTo(parameters, result);
+            adaptSizeEstimate(result.length());
+            return result.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException("StringBuilder reported an I/O problem", e);
+        } finally {
+            if (reuse) {
+                RenderBuffers.release(result);
+            }
+        }
+    }
+
+    /**
+     * Renders this template exactly like {@link TemplateFormatter#format(String, Map)} renders the format string: the tokens
+     * are replaced like {@link TemplateFormatter#formatProperties(String, Map)} does, then the scripts of the result are
+     * evaluated by {@link TemplateFormatter#formatScripts(String, Map)}. Unlike {@link #render(Map)}, repeated token texts get
+     * the value of their first occurrence, unresolved tokens are always kept and script sections contained in values are
+     * evaluated as well. Whenever {@link #replaceTokens(Map)} can't replace the tokens with the same result, the string
+     * replacement itself is used. The render is reported to the render listener of the formatter either way.
+     *
+     * @param parameters the named objects referenced by the template. May be <code>null</code>
+     * @return the formatted text
+     */
+    String format(Map<String, Object> parameters) {
+        final RenderContext context = newContext(parameters);
+        String text = replaceTokens(context);
+        if (text == null) {
+            text = context.formatProperties ? formatter.formatProperties(template, parameters, context) : template;
+        }
+        // script sections of the template were kept as they are, values may contain further ones
+        if (formatter.isFormatScripts() && text.contains(TemplateFormatter.SCRIPT_START_TAG)) {
+            final long start = context.timed ? System.nanoTime() : 0L;
+            text = formatter.formatScripts(text, parameters);
+            if (context.timed) {
+                context.scriptNanos += System.nanoTime() - start;
+            }
+        }
+        context.finished(text.length());
+        return text;
+    }
+
+    /**
+     * Replaces the tokens of this template like {@link TemplateFormatter#formatProperties(String, Map)} does, keeping script
+     * sections as they are.
+     * <p>
+     * The string replacement scans substituted values for further tokens. If the template contains malformed tokens
+     * (unclosed <code>${</code>, empty <code>${}</code>, nested tokens or names starting with a dot) or a substituted value
+     * may form a new token (it contains <code>${</code>, ends with <code>$</code>, or follows a <code>$</code> and starts
+     * with <code>{</code> or is empty) or hide the next token (an empty value directly followed by a token), the output could
+     * differ and <code>null</code> is returned instead. The values resolved so far are discarded then.
+     *
+     * @param parameters the named objects referenced by the template. May be <code>null</code>
+     * @return the text with the tokens replaced or <code>null</code> if the caller has to use the string replacement
+     */
+    String replaceTokens(Map<String, Object> parameters) {
+        return replaceTokens(newContext(parameters));
+    }
+
+    private String replaceTokens(RenderContext context) {
+        if (!formatCompatible) {
+            return null;
+        }
+        context.formatCompatible = true;
+        if (tokenCount > distinctTokens) {
+            context.replaced = new String[distinctTokens];
+        }
+        final StringBuilder result = new StringBuilder(getEstimatedSize());
+        try {
+            for (Segment segment : segments) {
+                segment.render(context, result);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("StringBuilder reported an I/O problem", e);
+        }
+        if (context.rescanned) {
+            return null;
+        }
+        adaptSizeEstimate(result.length());
+        return result.toString();
+    }
+
+    /**
+     * Renders this template with the named objects provided by the passed resolver. The resolver is only asked for the
+     * {@link #getObjectNames() objects referenced by tokens}. Script sections only see these objects as well.
+     *
+     * @param resolver provides the named objects
+     * @return the formatted text
+     */
+    public String renderWith(ParameterResolver resolver) {
+        return render(resolve(resolver));
+    }
+
+    /**
+     * Renders this template with the named objects provided by the passed resolver directly into the passed target.
+     *
+     * @see #renderWith(ParameterResolver)
+     * @see #renderTo(Map, Appendable)
+     */
+    public void renderWith(ParameterResolver resolver, Appendable target) throws IOException {
+        renderTo(resolve(resolver), target);
+    }
+
+    /**
+     * Queries the resolver for all referenced objects.
+     */
+    private Map<String, Object> resolve(ParameterResolver resolver) {
+        final Map<String, Object> parameters = new HashMap<String, Object>(objectNames.size() * 4 / 3 + 1);
+        for (String name : objectNames) {
+            final Object value = resolver.resolve(name);
+            if (value != ParameterResolver.UNRESOLVED) {
+                parameters.put(name, value);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Grows the estimate of the variable size at once to fit the largest values seen. Shrinks it slowly as a running average
+     * if the values get smaller.
+     */
+    private void adaptSizeEstimate(int length) {
+        final int variable = Math.max(0, length - analysis.getLiteralLength());
+        final int estimate = variableSizeEstimate;
+        if (variable > estimate) {
+            variableSizeEstimate = variable;
+        } else {
+            variableSizeEstimate = estimate - ((estimate - variable) >> 3);
+        }
+    }
+
+    /**
+     * Renders this template directly into the passed target, i.e. a <code>Writer</code> or <code>StringBuilder</code>. Literal
+     * segments and token values are appended one by one without building the whole text in memory first. Only script sections
+     * are collected before they are evaluated.
+     *
+     * @param parameters the named objects referenced by the template. May be <code>null</code>
+     * @param target     the target to write the formatted text to
+     * @throws IOException if the target fails to accept the text
+     */
+    public void renderTo(Map<String, Object> parameters, Appendable target) throws IOException {
+        final int startLength = target instanceof StringBuilder ? ((StringBuilder) target).length() : -1;
+        final RenderContext context = openContext(parameters);
+        try {
+            for (Segment segment : segments) {
+                segment.render(context, target);
+            }
+        } finally {
+            closeContext(context);
+        }
+        context.finished(startLength >= 0 ? ((StringBuilder) target).length() - startLength : -1);
+    }
+
+    /**
+     * Creates the state of a render and acquires a script interpreter if needed.
+     */
+    private RenderContext openContext(Map<String, Object> parameters) {
+        final RenderContext context = newContext(parameters);
+        if (containsScripts && formatter.isFormatScripts()) {
+            context.scriptEngine = formatter.getScriptEngineProvider();
+            if (context.scriptEngine == null) {
+                try {
+                    context.interpreter = context.interpreters.acquire();
+                } catch (Exception e) {
+                    // Unable to run scripts at all: keep script sections as they are.
+                    TemplateFormatter.logScriptException(e);
+                }
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Creates the state of a render without acquiring a script interpreter.
+     */
+    private RenderContext newContext(Map<String, Object> parameters) {
+        final Map<String, Object> values = parameters != null ? parameters : Collections.<String, Object>emptyMap();
+        return new RenderContext(parameters, values, formatter.isFormatProperties());
+    }
+
+    /**
+     * Returns the interpreter of the render, unless a script failed.
+     */
+    private static void closeContext(RenderContext context) {
+        if (context.interpreter != null && !context.interpreterFailed) {
+            context.interpreters.release(context.interpreter);
+        }
+    }
+
+    /**
+     * Renders this template for each of the passed parameter maps in parallel and passes the results to the consumer.
+     * <p>
+     * At most <code>maxInFlight</code> renders are pending at a time. Further inputs are only taken from the iterable once
+     * results have been consumed, so inputs larger than memory can be streamed. The consumer is called on the calling thread
+     * only; this method returns once all results have been consumed. If a render or the consumer fails, pending renders are
+     * cancelled and the exception is rethrown.
+     *
+     * @param inputs      the named objects of each render
+     * @param consumer    receives the rendered texts
+     * @param executor    the executor rendering the templates, i.e. a <code>ForkJoinPool</code>
+     * @param ordered     <code>true</code> to pass the results in input order, <code>false</code> for completion order
+     * @param maxInFlight maximum number of pending renders
+     * @return the number of rendered inputs
+     */
+    public long renderAll(Iterable<? extends Map<String, Object>> inputs, Consumer<? super String> consumer, Executor executor,
+                          boolean ordered, int maxInFlight) {
+        return new BulkRenderer(this, executor, ordered, maxInFlight).run(inputs.iterator(), consumer);
+    }
+
+    /**
+     * Renders this template for each of the passed parameter maps in parallel like
+     * {@link #renderAll(Iterable, Consumer, Executor, boolean, int)}, keeping a few renders per thread of the executor in
+     * flight.
+     */
+    public long renderAll(Iterable<? extends Map<String, Object>> inputs, Consumer<? super String> consumer, Executor executor,
+                          boolean ordered) {
+        return renderAll(inputs, consumer, executor, ordered, BulkRenderer.defaultMaxInFlight(executor));
+    }
+
+    /**
+     * Renders this template asynchronously with lazily resolved named objects. Objects passed as
+     * <code>CompletionStage</code> (i.e. a <code>CompletableFuture</code>) or <code>Supplier</code> are resolved before
+     * rendering, but only if the template references them. Suppliers are all started at once on the executor, so slow lookups
+     * run concurrently. All other objects are passed as they are.
+     * <p>
+     * Script sections may use any named object, so all lazy objects are resolved if the template contains scripts and
+     * scripting is enabled.
+     *
+     * @param parameters the named objects referenced by the template. May be <code>null</code>
+     * @param executor   runs the suppliers and the render, i.e. an executor creating a virtual thread per task
+     * @return the formatted text. Completes exceptionally if resolving a referenced object failed
+     */
+    public CompletableFuture<String> renderAsync(final Map<String, Object> parameters, Executor executor) {
+        if (parameters == null) {
+            return CompletableFuture.supplyAsync(new Supplier<String>() {
+                @Override
+                public String get() {
+                    return render(null);
+                }
+            }, executor);
+        }
+        final Collection<String> names = containsScripts && formatter.isFormatScripts() ? parameters.keySet() : objectNames;
+        final List<String> lazyNames = new ArrayList<String>();
+        final List<CompletableFuture<?>> lazyValues = new ArrayList<CompletableFuture<?>>();
+        for (String name : names) {
+            final Object value = parameters.get(name);
+            if (value instanceof CompletionStage) {
+                lazyNames.add(name);
+                lazyValues.add(((CompletionStage<?>) value).toCompletableFuture());
+            } else if (value instanceof Supplier) {
+                lazyNames.add(name);
+                lazyValues.add(CompletableFuture.supplyAsync((Supplier<?>) value, executor));
+            }
+        }
+        final CompletableFuture<Void> resolved = CompletableFuture.allOf(
+                lazyValues.toArray(new CompletableFuture<?>[lazyValues.size()]));
+        return resolved.thenApplyAsync(new Function<Void, String>() {
+            @Override
+            public String apply(Void ignored) {
+                if (lazyNames.isEmpty()) {
+                    return render(parameters);
+                }
+                final Map<String, Object> values = new HashMap<String, Object>(parameters);
+                for (int i = 0; i < lazyNames.size(); i++) {
+                    values.put(lazyNames.get(i), lazyValues.get(i).join());
+                }
+                return render(values);
+            }
+        }, executor);
+    }
+
+    /**
+     * Creates an incremental renderer for this template which detects changed parameters by identity.
+     *
+     * @see Incremental
+     */
+    public Incremental incremental() {
+        return new Incremental(false);
+    }
+
+    /**
+     * Creates an incremental renderer for this template.
+     *
+     * @param compareByEquals <code>true</code> to detect changed parameters by <code>equals()</code>, <code>false</code> by
+     *                        identity
+     * @see Incremental
+     */
+    public Incremental incremental(boolean compareByEquals) {
+        return new Incremental(compareByEquals);
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    /**
+     * Splits the region <code>[from, to)</code> of the template into literal and property token segments.
+     *
+     * @param tokenSources   the token texts seen so far with their ordinal in the order of first occurrence
+     * @param parameterTypes the declared types of the named objects
+     * @param signature      check the tokens against the parameter types
+     * @param collector      receives the findings
+     */
+    @SuppressWarnings("MethodWithTooManyParameters")
+    private static void parseProperties(TemplateFormatter formatter, String template, int from, int to, List<Segment> segments,
+                                        Map<String, Integer> tokenSources, Map<String, Class<?>> parameterTypes,
+                                        boolean signature, TemplateAnalysis.Collector collector) {
+        int pos = from;
+        int openToken = template.indexOf(TemplateFormatter.PROPERTY_START_TAG, from);
+        while (openToken >= 0 && openToken < to) {
+            final int nameStart = openToken + TemplateFormatter.PROPERTY_START_TAG.length();
+            final int closeToken = template.indexOf(TemplateFormatter.PROPERTY_CLOSE_TAG, nameStart);
+            if (closeToken < 0 || closeToken >= to) {
+                collector.unclosedToken(openToken);
+                break;
+            }
+
+            Segment token = null;
+            final String name = template.substring(nameStart, closeToken);
+            if (name.contains(TemplateFormatter.PROPERTY_START_TAG)) {
+                collector.unclosedToken(openToken);
+            } else if (name.length() > 0) {
+                final String source = template.substring(openToken, closeToken + 1);
+                Integer ordinal = tokenSources.get(source);
+                if (ordinal == null) {
+                    ordinal = tokenSources.size();
+                    tokenSources.put(source, ordinal);
+                }
+                final int dot = name.indexOf('.');
+                if (dot < 0) {
+                    // trivial case: ${objectname}
+                    token = new ObjectToken(source, ordinal, name);
+                    collector.token(source, !signature || parameterTypes.containsKey(name));
+                } else if (dot > 0 && dot < name.length() - 1) {
+                    // case ${objectname.name}
+                    final String objectName = name.substring(0, dot);
+                    final String fullTokenName = name.substring(dot + 1);
+                    final String[] path = TemplateFormatter.splitTokenPath(fullTokenName);
+                    final Class<?> objectType = parameterTypes.get(objectName);
+                    token = new PropertyToken(source, ordinal, objectName, fullTokenName, path,
+                            objectType != null ? TypedPropertyPath.bind(formatter, objectType, path) : null,
+                            objectType != null ? TypedPropertyPath.bindAppender(formatter, objectType, path) : null,
+                            formatter.getPropertyAccessMode());
+                    collector.token(source, !signature || isResolvable(formatter, parameterTypes, objectName, path));
+                }
+            }
+
+            if (token != null) {
+                if (openToken > pos) {
+                    segments.add(new Literal(template.substring(pos, openToken)));
+                }
+                segments.add(token);
+                pos = closeToken + TemplateFormatter.PROPERTY_CLOSE_TAG.length();
+                openToken = template.indexOf(TemplateFormatter.PROPERTY_START_TAG, pos);
+            } else {
+                openToken = template.indexOf(TemplateFormatter.PROPERTY_START_TAG, openToken + 1);
+            }
+        }
+        if (to > pos) {
+            segments.add(new Literal(template.substring(pos, to)));
+        }
+    }
+
+    /**
+     * Is the path resolvable on the declared types? Returns <code>true</code> if that can't be decided, i.e. for values
+     * declared as interface or <code>Object</code>.
+     */
+    private static boolean isResolvable(TemplateFormatter formatter, Map<String, Class<?>> parameterTypes, String objectName,
+                                        String[] path) {
+        if (!parameterTypes.containsKey(objectName)) {
+            return false;
+        }
+        Class<?> type = parameterTypes.get(objectName);
+        for (String name : path) {
+            if (type == null || type.isInterface() || type == Object.class || !formatter.isResolvedReflectively(type)) {
+                return true;
+            }
+            final PropertyAccessors.Accessor accessor = PropertyAccessors.forClass(type).accessor(name,
+                    formatter.isFormatFields(), formatter.isFormatBeanValues(), formatter.isFormatMethods());
+            if (accessor == null) {
+                return false;
+            }
+            type = accessor.valueType().isPrimitive() ? null : accessor.valueType();
+        }
+        return true;
+    }
+
+    private static int countTokens(Segment[] segments) {
+        int count = 0;
+        for (Segment segment : segments) {
+            if (segment instanceof ScriptSegment) {
+                count += countTokens(((ScriptSegment) segment).body);
+            } else if (segment instanceof Token) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void collectObjectNames(Segment[] segments, Set<String> names) {
+        for (Segment segment : segments) {
+            if (segment instanceof ScriptSegment) {
+                collectObjectNames(((ScriptSegment) segment).body, names);
+            } else if (segment instanceof Token) {
+                names.add(((Token) segment).objectName);
+            }
+        }
+    }
+
+    /**
+     * Mutable per-render state.
+     */
+    private final class RenderContext extends TypedPropertyPath.ReflectiveLookups {
+        /**
+         * The parameters as passed by the caller, handed on to scripts.
+         */
+        final Map<String, Object> scriptParameters;
+        final Map<String, Object> parameters;
+        final boolean formatProperties;
+        final int propertyAccessMode;
+        /**
+         * Set once a property access failed. Only tokens whose text occurred before the failing one are replaced afterwards.
+         */
+        boolean aborted;
+        /**
+         * The {@link Token#ordinal} of the token whose property access failed.
+         */
+        int abortOrdinal;
+        /**
+         * The script engine provider evaluating the scripts. If <code>null</code>, the interpreter is used.
+         */
+        ScriptEngineProvider scriptEngine;
+        InterpreterPool.Interpreter interpreter;
+        /**
+         * A script failed and may have left the interpreter in an unknown state.
+         */
+        boolean interpreterFailed;
+        final InterpreterPool interpreters;
+        /**
+         * Receives the timings, <code>null</code> if not taken
+         */
+        private final RenderListener listener;
+        private final long start;
+        /**
+         * A {@link RenderListener} is registered: take the time of the scripts.
+         */
+        final boolean timed;
+        long scriptNanos;
+        /**
+         * Render like {@link TemplateFormatter#formatProperties(String, Map)}, see {@link #replaceTokens(Map)}
+         */
+        boolean formatCompatible;
+        /**
+         * The values of the token texts replaced so far by ordinal, <code>null</code> if no token text is repeated
+         */
+        String[] replaced;
+        /**
+         * A substituted value may form a new token, so the string replacement would scan it again.
+         */
+        boolean rescanned;
+        /**
+         * The end of the last token replaced by an empty value or <code>-1</code>
+         */
+        int emptyEnd = -1;
+
+        /**
+         * Values are written by the default value formatter, so primitives may be appended directly.
+         */
+        final boolean defaultValueFormatting;
+        final UnresolvedPathPolicy unresolvedPathPolicy;
+        /**
+         * Buffer for values written to targets other than a <code>StringBuilder</code>. Created on demand.
+         */
+        private StringBuilder valueBuffer;
+
+        RenderContext(Map<String, Object> scriptParameters, Map<String, Object> parameters, boolean formatProperties) {
+            this.scriptParameters = scriptParameters;
+            this.parameters = parameters;
+            this.formatProperties = formatProperties;
+            this.propertyAccessMode = formatter.getPropertyAccessMode();
+            this.defaultValueFormatting = formatter.isDefaultValueFormatting();
+            this.unresolvedPathPolicy = formatter.getUnresolvedPathPolicy();
+            this.interpreters = formatter.getInterpreterPool();
+            this.listener = formatter.getRenderListener();
+            this.timed = listener != null;
+            this.start = timed ? System.nanoTime() : 0L;
+        }
+
+        /**
+         * Reports the render to the listener.
+         *
+         * @param outputLength the number of characters written or <code>-1</code> if unknown
+         */
+        void finished(int outputLength) {
+            if (listener != null) {
+                listener.rendered(CompiledTemplate.this, System.nanoTime() - start, outputLength, scriptNanos,
+                        reflectiveLookups);
+            }
+        }
+
+        TemplateFormatter formatter() {
+            return formatter;
+        }
+
+        /**
+         * Appends the text of a token value.
+         */
+        void appendValue(Appendable target, String fulltoken, Object value) throws IOException {
+            if (target instanceof StringBuilder) {
+                formatter.appendValue((StringBuilder) target, fulltoken, value);
+            } else {
+                if (valueBuffer == null) {
+                    valueBuffer = new StringBuilder();
+                }
+                valueBuffer.setLength(0);
+                formatter.appendValue(valueBuffer, fulltoken, value);
+                target.append(valueBuffer);
+            }
+        }
+    }
+
+    /**
+     * Renders a template repeatedly with partially changed parameters, i.e. for a dashboard updated every second. It keeps
+     * the text of each segment of the last render. An update re-evaluates only the tokens referring to a changed named object
+     * and replaces their kept text, so the evaluation costs about the size of the change instead of the size of the template.
+     * Only the returned <code>String</code> is concatenated from all kept texts, once per change; renders without changes
+     * return the previous <code>String</code>.
+     * <p>
+     * Changes are either passed explicitly or detected by comparing the named objects with those of the last render. The
+     * detection can't see changes within a mutable object passed again, these have to be passed explicitly. Script sections
+     * may use any named object and are re-evaluated on every change. Everything is rendered again after a property access
+     * failed or if a setting of the formatter has been changed.
+     * <p>
+     * Instances keep state between renders and must not be used by multiple threads at the same time.
+     *
+     * @see CompiledTemplate#incremental()
+     */
+    public final class Incremental {
+        private final boolean compareByEquals;
+        /**
+         * The indexes of the token segments referring to each named object, in ascending order
+         */
+        private final Map<String, int[]> dependents = new HashMap<String, int[]>();
+        /**
+         * The indexes of the segments which are script sections
+         */
+        private final int[] scriptIndexes;
+        /**
+         * The text of each segment rendered last
+         */
+        private final String[] fragments;
+        /**
+         * The total length of the fragments
+         */
+        private int length;
+        /**
+         * The fragments concatenated, <code>null</code> if not yet built since the last change
+         */
+        private String text;
+        private final StringBuilder fragment = new StringBuilder();
+        private Map<String, Object> previous;
+        /**
+         * Settings of the formatter at the last full render
+         */
+        private int propertyAccessMode;
+        private boolean formatScripts;
+        private String nullString;
+        private ValueFormatter valueFormatter;
+        private UnresolvedPathPolicy unresolvedPathPolicy;
+        private ScriptEngineProvider scriptEngineProvider;
+        /**
+         * The last render failed or hit a failing property access, so the next render has to be a full one.
+         */
+        private boolean invalid = true;
+
+        Incremental(boolean compareByEquals) {
+            this.compareByEquals = compareByEquals;
+            this.fragments = new String[segments.length];
+            final List<Integer> scriptList = new ArrayList<Integer>();
+            for (int i = 0; i < segments.length; i++) {
+                final Segment segment = segments[i];
+                if (segment instanceof Token) {
+                    final String key = ((Token) segment).objectName;
+                    final int[] known = dependents.get(key);
+                    final int[] indexes = known != null ? Arrays.copyOf(known, known.length + 1) : new int[1];
+                    indexes[indexes.length - 1] = i;
+                    dependents.put(key, indexes);
+                } else if (segment instanceof ScriptSegment) {
+                    scriptList.add(i);
+                }
+            }
+            this.scriptIndexes = new int[scriptList.size()];
+            for (int i = 0; i < scriptIndexes.length; i++) {
+                scriptIndexes[i] = scriptList.get(i);
+            }
+        }
+
+        /**
+         * Renders the template, re-evaluating only the tokens whose named object differs from the one passed last time.
+         *
+         * @param parameters the named objects referenced by the template. May be <code>null</code>
+         * @return the formatted text
+         */
+        public String render(Map<String, Object> parameters) {
+            final Map<String, Object> values = parameters != null ? parameters : Collections.<String, Object>emptyMap();
+            if (invalid || previous == null) {
+                return renderAll(parameters);
+            }
+            final Set<String> changed = new HashSet<String>();
+            int added = 0;
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                final String key = entry.getKey();
+                final Object value = entry.getValue();
+                final Object before = previous.get(key);
+                if (before == null && !previous.containsKey(key)) {
+                    changed.add(key);
+                    added++;
+                } else if (before != value && (!compareByEquals || before == null || !before.equals(value))) {
+                    changed.add(key);
+                }
+            }
+            if (previous.size() > values.size() - added) {
+                // some objects have been removed
+                for (String key : previous.keySet()) {
+                    if (!values.containsKey(key)) {
+                        changed.add(key);
+                    }
+                }
+            }
+            return render(parameters, changed);
+        }
+
+        /**
+         * Renders the template, re-evaluating only the tokens referring to one of the passed named objects.
+         *
+         * @param parameters  the named objects referenced by the template. May be <code>null</code>
+         * @param changedKeys the names of the objects changed since the last render
+         * @return the formatted text
+         */
+        public String render(Map<String, Object> parameters, Collection<String> changedKeys) {
+            if (invalid || previous == null || settingsChanged()) {
+                return renderAll(parameters);
+            }
+            final int[] changed = changedSegments(changedKeys);
+            if (changed.length == 0) {
+                final RenderContext context = newContext(parameters);
+                remember(parameters);
+                context.finished(length);
+                return text();
+            }
+            final RenderContext context = openContext(parameters);
+            invalid = true;
+            try {
+                for (int i : changed) {
+                    fragment.setLength(0);
+                    segments[i].render(context, fragment);
+                    length += fragment.length() - fragments[i].length();
+                    fragments[i] = fragment.toString();
+                }
+                invalid = context.aborted;
+            } catch (IOException e) {
+                throw new IllegalStateException("StringBuilder reported an I/O problem", e);
+            } finally {
+                closeContext(context);
+            }
+            if (invalid) {
+                // a failing property access changes the rendering of all following tokens
+                return renderAll(parameters);
+            }
+            text = null;
+            remember(parameters);
+            context.finished(length);
+            return text();
+        }
+
+        /**
+         * The indexes of the segments to evaluate again for the passed changes in ascending order: the tokens referring to a
+         * changed object and all script sections.
+         */
+        private int[] changedSegments(Collection<String> changedKeys) {
+            if (changedKeys.isEmpty()) {
+                return new int[0];
+            }
+            int[] result = Arrays.copyOf(scriptIndexes, scriptIndexes.length + 8);
+            int count = scriptIndexes.length;
+            for (String key : changedKeys) {
+                final int[] indexes = dependents.get(key);
+                if (indexes != null) {
+                    if (count + indexes.length > result.length) {
+                        result = Arrays.copyOf(result, Math.max(2 * result.length, count + indexes.length));
+                    }
+                    System.arraycopy(indexes, 0, result, count, indexes.length);
+                    count += indexes.length;
+                }
+            }
+            Arrays.sort(result, 0, count);
+            // keys passed more than once
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || result[i] != result[unique - 1]) {
+                    result[unique++] = result[i];
+                }
+            }
+            return Arrays.copyOf(result, unique);
+        }
+
+        /**
+         * Renders all segments again.
+         */
+        private String renderAll(Map<String, Object> parameters) {
+            invalid = true;
+            rememberSettings();
+            final RenderContext context = openContext(parameters);
+            try {
+                length = 0;
+                for (int i = 0; i < segments.length; i++) {
+                    final Segment segment = segments[i];
+                    if (segment instanceof Literal) {
+                        fragments[i] = ((Literal) segment).text;
+                    } else {
+                        fragment.setLength(0);
+                        segment.render(context, fragment);
+                        fragments[i] = fragment.toString();
+                    }
+                    length += fragments[i].length();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("StringBuilder reported an I/O problem", e);
+            } finally {
+                closeContext(context);
+            }
+            invalid = context.aborted;
+            text = null;
+            remember(parameters);
+            context.finished(length);
+            return text();
+        }
+
+        /**
+         * The kept fragments concatenated.
+         */
+        private String text() {
+            if (text == null) {
+                final StringBuilder result = new StringBuilder(length);
+                for (String kept : fragments) {
+                    result.append(kept);
+                }
+                text = result.toString();
+            }
+            return text;
+        }
+
+        private void remember(Map<String, Object> parameters) {
+            previous = parameters != null ? new HashMap<String, Object>(parameters) : new HashMap<String, Object>();
+        }
+
+        private void rememberSettings() {
+            propertyAccessMode = formatter.getPropertyAccessMode();
+            formatScripts = formatter.isFormatScripts();
+            nullString = formatter.getNullString();
+            valueFormatter = formatter.getValueFormatter();
+            unresolvedPathPolicy = formatter.getUnresolvedPathPolicy();
+            scriptEngineProvider = formatter.getScriptEngineProvider();
+        }
+
+        private boolean settingsChanged() {
+            return propertyAccessMode != formatter.getPropertyAccessMode() || formatScripts != formatter.isFormatScripts()
+                    || !nullString.equals(formatter.getNullString()) || valueFormatter != formatter.getValueFormatter()
+                    || unresolvedPathPolicy != formatter.getUnresolvedPathPolicy()
+                    || scriptEngineProvider != formatter.getScriptEngineProvider();
+        }
+
+        /**
+         * The template rendered.
+         */
+        public CompiledTemplate getTemplate() {
+            return CompiledTemplate.this;
+        }
+    }
+
+    private abstract static class Segment {
+        abstract void render(RenderContext context, Appendable target) throws IOException;
+    }
+
+    private static final class Literal extends Segment {
+        private final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+
+        @Override
+        void render(RenderContext context, Appendable target) throws IOException {
+            target.append(text);
+        }
+    }
+
+    /**
+     * Common base of all property tokens. A token is replaced by its value or kept as is if it can't be resolved.
+     */
+    private abstract static class Token extends Segment {
+        /**
+         * The token text as contained in the template.
+         */
+        final String source;
+        /**
+         * Number of distinct token texts whose first occurrence precedes the first occurrence of this token text.
+         */
+        final int ordinal;
+        /**
+         * The name of the object referenced.
+         */
+        final String objectName;
+
+        Token(String source, int ordinal, String objectName) {
+            this.source = source;
+            this.ordinal = ordinal;
+            this.objectName = objectName;
+        }
+
+        @Override
+        final void render(RenderContext context, Appendable target) throws IOException {
+            // After a failing property access the formatter only keeps the replacements of the token texts visited before,
+            // including their repetitions later in the template.
+            if (!context.formatProperties || (context.aborted && ordinal >= context.abortOrdinal)) {
+                target.append(source);
+                return;
+            }
+            if (context.formatCompatible) {
+                renderCompatible(context, (StringBuilder) target);
+                return;
+            }
+            try {
+                if (!renderValue(context, target)) {
+                    renderUnresolved(context, target);
+                }
+            } catch (IllegalAccessException e) {
+                abort(context, e);
+                target.append(source);
+            } catch (InvocationTargetException e) {
+                abort(context, e);
+                target.append(source);
+            }
+        }
+
+        /**
+         * Renders the token like {@link TemplateFormatter#formatProperties(String, Map)}, which replaces all occurrences of a
+         * token text at once and keeps unresolved tokens.
+         */
+        private void renderCompatible(RenderContext context, StringBuilder target) throws IOException {
+            final int from = target.length();
+            if (from == context.emptyEnd) {
+                // the string replacement continues its search behind the start of the empty value, skipping this token
+                context.rescanned = true;
+            }
+            final String known = context.replaced != null ? context.replaced[ordinal] : null;
+            if (known != null) {
+                target.append(known);
+            } else if (context.aborted) {
+                // the string replacement stops at the failing token
+                target.append(source);
+                return;
+            } else {
+                try {
+                    if (!renderValue(context, target)) {
+                        target.append(source);
+                        return;
+                    }
+                } catch (IllegalAccessException e) {
+                    abort(context, e);
+                    target.append(source);
+                    return;
+                } catch (InvocationTargetException e) {
+                    abort(context, e);
+                    target.append(source);
+                    return;
+                }
+                if (context.replaced != null) {
+                    context.replaced[ordinal] = target.substring(from);
+                }
+            }
+            if (target.length() == from) {
+                context.emptyEnd = from;
+            }
+            if (formsToken(target, from)) {
+                context.rescanned = true;
+            }
+        }
+
+        /**
+         * May the value appended at <code>from</code> form a new token together with the text before or after it?
+         */
+        private static boolean formsToken(StringBuilder text, int from) {
+            final int to = text.length();
+            if (from > 0 && text.charAt(from - 1) == '$' && (from == to || text.charAt(from) == '{')) {
+                return true;
+            }
+            for (int i = from; i < to; i++) {
+                if (text.charAt(i) == '$' && (i == to - 1 || text.charAt(i + 1) == '{')) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void renderUnresolved(RenderContext context, Appendable target) throws IOException {
+            switch (context.unresolvedPathPolicy) {
+                case EMPTY:
+                    break;
+                case NULL_STRING:
+                    target.append(context.formatter().getNullString());
+                    break;
+                default:
+                    target.append(source);
+                    break;
+            }
+        }
+
+        private void abort(RenderContext context, Exception e) {
+            if (!context.aborted) {
+                TemplateFormatter.logPropertyException(e);
+                context.aborted = true;
+                context.abortOrdinal = ordinal;
+            }
+        }
+
+        /**
+         * Appends the value of this token.
+         *
+         * @return <code>false</code> if the token could not be resolved and has to stay as it is.
+         */
+        abstract boolean renderValue(RenderContext context, Appendable target)
+                throws IOException, IllegalAccessException, InvocationTargetException;
+    }
+
+    /**
+     * A reference to a plain named object: <code>${objectname}</code>
+     */
+    private static final class ObjectToken extends Token {
+
+        ObjectToken(String source, int ordinal, String objectName) {
+            super(source, ordinal, objectName);
+        }
+
+        @Override
+        boolean renderValue(RenderContext context, Appendable target) throws IOException {
+            if (!context.parameters.containsKey(objectName)) {
+                return false;
+            }
+            context.appendValue(target, objectName, context.parameters.get(objectName));
+            return true;
+        }
+    }
+
+    /**
+     * A reference to a property of a named object: <code>${objectname.name.name}</code>
+     */
+    private static final class PropertyToken extends Token {
+        private final String fullTokenName;
+        private final String[] path;
+        /**
+         * Direct accessor chain for the declared object type or <code>null</code>
+         */
+        private final MethodHandle typedPath;
+        /**
+         * Appends a primitive result of the typed path without boxing, <code>null</code> if the path doesn't end with a
+         * primitive.
+         */
+        private final MethodHandle typedAppender;
+        /**
+         * The property access settings the typed path was bound with.
+         */
+        private final int typedAccessMode;
+
+        PropertyToken(String source, int ordinal, String objectName, String fullTokenName, String[] path,
+                      MethodHandle typedPath, MethodHandle typedAppender, int typedAccessMode) {
+            super(source, ordinal, objectName);
+            this.fullTokenName = fullTokenName;
+            this.path = path;
+            this.typedPath = typedPath;
+            this.typedAppender = typedAppender;
+            this.typedAccessMode = typedAccessMode;
+        }
+
+        @Override
+        boolean renderValue(RenderContext context, Appendable target)
+                throws IOException, IllegalAccessException, InvocationTargetException {
+            final TemplateFormatter formatter = context.formatter();
+            Object replacement = context.parameters.get(objectName);
+            if (typedAppender != null && typedAccessMode == context.propertyAccessMode && context.defaultValueFormatting
+                    && target instanceof StringBuilder) {
+                replacement = invokeTyped(typedAppender, replacement, (StringBuilder) target, context);
+                if (replacement == TypedPropertyPath.APPENDED) {
+                    return true;
+                }
+            } else if (typedPath != null && typedAccessMode == context.propertyAccessMode) {
+                replacement = invokeTyped(typedPath, replacement, null, context);
+            } else {
+                for (int i = 0; i < path.length && replacement != null && replacement != TemplateFormatter.UNRESOLVED; i++) {
+                    replacement = formatter.resolveSegment(replacement, path[i], context);
+                }
+            }
+            if (replacement == TemplateFormatter.UNRESOLVED) {
+                return false;
+            }
+            if (replacement != null) {
+                context.appendValue(target, fullTokenName, replacement);
+            }
+            return true;
+        }
+
+        /**
+         * Invokes the typed path or, if a target is passed, the typed appender.
+         */
+        @SuppressWarnings("OverlyBroadCatchBlock")
+        private static Object invokeTyped(MethodHandle handle, Object value, StringBuilder target,
+                                          TypedPropertyPath.ReflectiveLookups lookups)
+                throws IllegalAccessException, InvocationTargetException {
+            try {
+                return target != null ? (Object) handle.invokeExact(value, target, lookups)
+                        : (Object) handle.invokeExact(value, lookups);
+            } catch (IllegalAccessException e) {
+                throw e;
+            } catch (InvocationTargetException e) {
+                throw e;
+            } catch (Throwable t) { // NOSONAR thrown by the invoked accessor itself
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+
+    /**
+     * A script section enclosed in {@link TemplateFormatter#SCRIPT_START_TAG} and {@link TemplateFormatter#SCRIPT_END_TAG}.
+     * The script source itself may contain property tokens.
+     */
+    private static final class ScriptSegment extends Segment {
+        private final Segment[] body;
+
+        ScriptSegment(Segment[] body) {
+            this.body = body;
+        }
+
+        @Override
+        void render(RenderContext context, Appendable target) throws IOException {
+            if (context.scriptEngine == null && context.interpreter == null) {
+                target.append(TemplateFormatter.SCRIPT_START_TAG);
+                for (Segment segment : body) {
+                    segment.render(context, target);
+                }
+                target.append(TemplateFormatter.SCRIPT_END_TAG);
+            } else {
+                StringBuilder script = new StringBuilder();
+                for (Segment segment : body) {
+                    segment.render(context, script);
+                }
+                final long start = context.timed ? System.nanoTime() : 0L;
+                final String result = evaluate(context, script.toString());
+                if (context.timed) {
+                    context.scriptNanos += System.nanoTime() - start;
+                }
+                target.append(result);
+            }
+        }
+
+        /**
+         * Runs the script.
+         *
+         * @return the script result or the error text
+         */
+        private static String evaluate(RenderContext context, String script) {
+            if (context.scriptEngine != null) {
+                try {
+                    return context.formatter().evalScript(script, context.parameters, context.scriptEngine);
+                } catch (Exception ex) {
+                    return TemplateFormatter.scriptError(ex);
+                }
+            }
+            try {
+                return context.formatter().evalScript(script, context.scriptParameters, context.interpreter);
+            } catch (Exception ex) {
+                context.interpreterFailed = true;
+                return TemplateFormatter.scriptError(ex);
+            }
+        }
+    }
+}
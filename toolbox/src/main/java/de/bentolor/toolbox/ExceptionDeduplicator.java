@@ -0,0 +1,374 @@
+package de.bentolor.toolbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Logs the full stack trace of an exception once per {@link ExceptionTools#fingerprint(Throwable, String...) fingerprint}
+ * and time window; repeats within the window are only counted and get the ID of the logged occurrence. The next occurrence
+ * after the window is logged again, together with the number of repeats suppressed meanwhile.
+ * <p>
+ * {@link #logSummary()} logs one line per fingerprint repeated since the last summary and may be
+ * {@link #scheduleSummaries(ScheduledExecutorService, long, TimeUnit) scheduled}. At most {@link #getMaxFingerprints()}
+ * fingerprints are tracked; exceptions with further fingerprints are logged every time.
+ * <pre>
+ * ExceptionTools.setDeduplicator(new ExceptionDeduplicator(1, TimeUnit.MINUTES, "de.bentolor"));
+ * ...
+ * String id = ExceptionTools.report(e);
+ * </pre>
+ *
+ * @see ExceptionTools#setDeduplicator(ExceptionDeduplicator)
+ */
+public final class ExceptionDeduplicator {
+
+    /**
+     * Default time window ({@value} ms)
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 60000;
+    /**
+     * Default maximum number of fingerprints tracked ({@value})
+     */
+    public static final int DEFAULT_MAX_FINGERPRINTS = 1000;
+
+    private final long windowMillis;
+    private final int maxFingerprints;
+    private final String[] acceptedPackagePrefixes;
+    private final ConcurrentHashMap<String, Occurrence> occurrences = new ConcurrentHashMap<String, Occurrence>();
+    private final LongAdder untracked = new LongAdder();
+
+    /**
+     * Creates a deduplicator with {@link #DEFAULT_WINDOW_MILLIS} fingerprinting by the throwing frames only.
+     */
+    public ExceptionDeduplicator() {
+        this(DEFAULT_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param window                  the time within which repeats of an exception are not logged
+     * @param unit                    the unit of the window
+     * @param acceptedPackagePrefixes the package prefixes of the frames to include in the fingerprint
+     */
+    public ExceptionDeduplicator(long window, TimeUnit unit, String... acceptedPackagePrefixes) {
+        this(window, unit, DEFAULT_MAX_FINGERPRINTS, acceptedPackagePrefixes);
+    }
+
+    /**
+     * @param window                  the time within which repeats of an exception are not logged
+     * @param unit                    the unit of the window
+     * @param maxFingerprints         the maximum number of distinct fingerprints tracked
+     * @param acceptedPackagePrefixes the package prefixes of the frames to include in the fingerprint
+     */
+    public ExceptionDeduplicator(long window, TimeUnit unit, int maxFingerprints, String... acceptedPackagePrefixes) {
+        if (window < 0) {
+            throw new IllegalArgumentException("Window must not be negative: " + window);
+        }
+        if (maxFingerprints < 1) {
+            throw new IllegalArgumentException("At least one fingerprint must be tracked: " + maxFingerprints);
+        }
+        this.windowMillis = unit.toMillis(window);
+        this.maxFingerprints = maxFingerprints;
+        this.acceptedPackagePrefixes = acceptedPackagePrefixes != null ? acceptedPackagePrefixes.clone() : new String[0];
+    }
+
+    /**
+     * Logs the exception unless it has already been logged within the time window.
+     *
+     * @param logLevel  The log level/severity to use.
+     * @param message   An additional message to describe this problem report, may be <code>null</code>.
+     * @param exception The exception you want to report / log.
+     * @return The ID of the logged occurrence of this exception. Show this to your users as reference.
+     * @see ExceptionTools#report(Level, String, Throwable)
+     */
+    public String report(Level logLevel, String message, Throwable exception) {
+        final String fingerprint = ExceptionTools.fingerprint(exception, acceptedPackagePrefixes);
+        final long now = System.currentTimeMillis();
+        Occurrence occurrence;
+        while (true) {
+            occurrence = occurrences.get(fingerprint);
+            if (occurrence == null) {
+                if (occurrences.size() >= maxFingerprints) {
+                    untracked.increment();
+                    final String id = ExceptionTools.generateID();
+                    ExceptionTools.dispatch(logLevel, id, describe(message, fingerprint, 0), exception);
+                    return id;
+                }
+                final Occurrence created = new Occurrence(fingerprint, exception, ExceptionTools.generateID(), now);
+                occurrence = occurrences.putIfAbsent(fingerprint, created);
+                if (occurrence == null) {
+                    ExceptionTools.dispatch(logLevel, created.id, describe(message, fingerprint, 0), exception);
+                    return created.id;
+                }
+            }
+            occurrence.lastSeen = now;
+            occurrence.count.increment();
+            if (!occurrence.removed) {
+                break;
+            }
+            synchronized (occurrence) {
+                // the summary may have kept it after all, having seen this increment
+                if (!occurrence.removed) {
+                    break;
+                }
+            }
+            // forgotten by logSummary() meanwhile: count in its successor
+        }
+
+        if (now - occurrence.windowStart < windowMillis) {
+            return occurrence.id;
+        }
+        final String id;
+        final long repeats;
+        synchronized (occurrence) {
+            if (now - occurrence.windowStart < windowMillis) {
+                return occurrence.id;
+            }
+            final long count = occurrence.count.sum();
+            // this report is not a repeat of the previous window
+            repeats = count - 1 - occurrence.countAtWindowStart;
+            occurrence.countAtWindowStart = count;
+            occurrence.windowStart = now;
+            id = ExceptionTools.generateID();
+            occurrence.id = id;
+        }
+        ExceptionTools.dispatch(logLevel, id, describe(message, fingerprint, repeats), exception);
+        return id;
+    }
+
+    private static String describe(String message, String fingerprint, long repeats) {
+        final StringBuilder result = new StringBuilder(message != null ? message : "Exception occurred");
+        result.append(" (fingerprint ").append(fingerprint);
+        if (repeats > 0) {
+            result.append(", ").append(repeats).append(" repeats not logged");
+        }
+        return result.append(')').toString();
+    }
+
+    /**
+     * Logs one line per fingerprint which occurred since the previous summary and forgets the fingerprints not seen for a
+     * whole time window.
+     *
+     * @return the number of lines logged
+     */
+    public int logSummary() {
+        final long now = System.currentTimeMillis();
+        int lines = 0;
+        for (Occurrence occurrence : occurrences.values()) {
+            final long count;
+            final long since;
+            synchronized (occurrence) {
+                count = occurrence.count.sum();
+                since = count - occurrence.countAtSummary;
+                occurrence.countAtSummary = count;
+                if (since == 0 && now - occurrence.lastSeen >= windowMillis) {
+                    occurrence.removed = true;
+                    // a report which missed the flag has incremented the count by now
+                    if (occurrence.count.sum() == count) {
+                        occurrences.remove(occurrence.fingerprint, occurrence);
+                        continue;
+                    }
+                    occurrence.removed = false;
+                }
+            }
+            if (since > 0) {
+                ExceptionTools.LOG.warn('[' + occurrence.id + "] " + occurrence.exceptionClass + " occurred " + since
+                        + " times since the last summary, " + count + " times in total (fingerprint "
+                        + occurrence.fingerprint + ')');
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Calls {@link #logSummary()} periodically.
+     *
+     * @param executor the executor to schedule the summaries with
+     * @return the future to cancel the summaries with
+     */
+    public ScheduledFuture<?> scheduleSummaries(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    logSummary();
+                } catch (RuntimeException e) {
+                    // keep the schedule alive
+                    ExceptionTools.LOG.warn("Exception summary failed", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * The occurrences of all tracked fingerprints.
+     *
+     * @return the summaries in descending order of the number of occurrences
+     */
+    public List<Summary> getSummaries() {
+        final List<Summary> result = new ArrayList<Summary>();
+        for (Occurrence occurrence : occurrences.values()) {
+            result.add(new Summary(occurrence));
+        }
+        Collections.sort(result, new Comparator<Summary>() {
+            @Override
+            public int compare(Summary a, Summary b) {
+                return Long.compare(b.getCount(), a.getCount());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The occurrences of one fingerprint.
+     *
+     * @return the summary or <code>null</code> if the fingerprint is not tracked
+     */
+    public Summary getSummary(String fingerprint) {
+        final Occurrence occurrence = occurrences.get(fingerprint);
+        return occurrence != null ? new Summary(occurrence) : null;
+    }
+
+    /**
+     * Forgets all fingerprints.
+     */
+    public void reset() {
+        occurrences.clear();
+        untracked.reset();
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getMaxFingerprints() {
+        return maxFingerprints;
+    }
+
+    /**
+     * The number of reports logged without deduplication because {@link #getMaxFingerprints()} was reached.
+     */
+    public long getUntrackedCount() {
+        return untracked.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ExceptionDeduplicator[fingerprints=" + occurrences.size() + ", windowMillis=" + windowMillis
+                + ", untracked=" + getUntrackedCount() + ']';
+    }
+
+    /**
+     * The mutable state of a fingerprint. The window and summary fields are guarded by the instance; <code>removed</code>
+     * is only set under its lock, too.
+     */
+    private static final class Occurrence {
+        final String fingerprint;
+        final String exceptionClass;
+        final String firstMessage;
+        final long firstSeen;
+        final LongAdder count = new LongAdder();
+        volatile String id;
+        volatile long windowStart;
+        volatile long lastSeen;
+        volatile boolean removed;
+        long countAtWindowStart;
+        long countAtSummary;
+
+        Occurrence(String fingerprint, Throwable exception, String id, long now) {
+            this.fingerprint = fingerprint;
+            this.exceptionClass = exception.getClass().getName();
+            this.firstMessage = exception.getMessage();
+            this.firstSeen = now;
+            this.id = id;
+            this.windowStart = now;
+            this.lastSeen = now;
+            this.countAtWindowStart = 1;
+            count.increment();
+        }
+    }
+
+    /**
+     * A snapshot of the occurrences of one fingerprint.
+     */
+    public static final class Summary {
+        private final String fingerprint;
+        private final String exceptionClass;
+        private final String firstMessage;
+        private final String id;
+        private final long count;
+        private final long firstSeen;
+        private final long lastSeen;
+
+        Summary(Occurrence occurrence) {
+            this.fingerprint = occurrence.fingerprint;
+            this.exceptionClass = occurrence.exceptionClass;
+            this.firstMessage = occurrence.firstMessage;
+            this.id = occurrence.id;
+            this.count = occurrence.count.sum();
+            this.firstSeen = occurrence.firstSeen;
+            this.lastSeen = occurrence.lastSeen;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * The class name of the exception.
+         */
+        public String getExceptionClass() {
+            return exceptionClass;
+        }
+
+        /**
+         * The message of the first exception with this fingerprint.
+         *
+         * @return may be <code>null</code>
+         */
+        public String getFirstMessage() {
+            return firstMessage;
+        }
+
+        /**
+         * The ID of the occurrence logged last.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * The number of occurrences in total, logged or not.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Time of the first occurrence in milliseconds since the epoch.
+         */
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        /**
+         * Time of the latest occurrence in milliseconds since the epoch.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        @Override
+        public String toString() {
+            return "Summary[fingerprint=" + fingerprint + ", exceptionClass=" + exceptionClass + ", id=" + id + ", count="
+                    + count + ", firstSeen=" + firstSeen + ", lastSeen=" + lastSeen + ']';
+        }
+    }
+}
@@ -4,11 +4,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.UUID;
 import java.util.logging.Level;
 
 /**
@@ -19,6 +17,9 @@ import java.util.logging.Level;
 public final class ExceptionTools {
 
     private static final String[] EMPTY_STRINGARRAY = {};
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_FINGERPRINT_CAUSES = 16;
     private static final int DEFAULT_SURROUND_LINE_COUNT = 5;
     private static final String ASCRII_SEPARATORLINE = "--------";
     private static final String STYLE_DECLARATION = "<style type=\"text/css\">\n" +
@@ -99,6 +100,11 @@ public final class ExceptionTools {
      */
     public static final Log LOG = LogFactory.getLog("EXCEPTIONS"); // NOSONAR
 
+    private static volatile SourceCache sourceCache = new SourceCache();
+    private static volatile AsyncExceptionReporter asyncReporter;
+    private static volatile ExceptionDeduplicator deduplicator;
+    private static volatile IdGenerator idGenerator = IdGenerators.sequential();
+
     private ExceptionTools() {
     }
 
@@ -269,12 +275,16 @@ public final class ExceptionTools {
         String sourceFileName = codePointerDetails.getSpotFileName();
 
         // First try file based approach
-        String[] fileContent = loadCodeFromFile(codeSearchPaths, sourceFilePath);
+        final SourceCache cache = sourceCache;
+        SourceLines fileContent = cache != null ? cache.loadFromFiles(codeSearchPaths, sourceFilePath)
+                : loadCodeFromFile(codeSearchPaths, sourceFilePath);
 
         // No success? Try via classpath
         if (fileContent == null) {
             String sourceResource = pkgName.replace('.', '/') + '/' + sourceFileName;
-            fileContent = loadCodeFromClasspath(sourceResource);
+            fileContent = cache != null
+                    ? cache.loadFromClasspath(Thread.currentThread().getContextClassLoader(), sourceResource)
+                    : loadCodeFromClasspath(sourceResource);
         }
 
         // Hmpfh... No luck today
@@ -287,8 +297,8 @@ public final class ExceptionTools {
 
         String[] content = new String[2 * surroundLineCount + 1];
         for (int i = startLine; i < startLine + 2 * surroundLineCount + 1; i++) {
-            if (i >= 0 && i < fileContent.length) {
-                content[i - startLine] = fileContent[i];
+            if (i >= 0 && i < fileContent.lineCount()) {
+                content[i - startLine] = fileContent.line(i);
             } else {
                 content[i - startLine] = "";
             }
@@ -300,15 +310,54 @@ public final class ExceptionTools {
         return codePointerDetails;
     }
 
+    /**
+     * The cache of source files read to show the code of a problem.
+     *
+     * @return the cache or <code>null</code> if caching is disabled
+     */
+    public static SourceCache getSourceCache() {
+        return sourceCache;
+    }
+
+    /**
+     * Sets the cache of source files read to show the code of a problem. By default a {@link SourceCache} with default bounds
+     * is used.
+     *
+     * @param cache the cache to use or <code>null</code> to read the source files on every call
+     */
+    public static void setSourceCache(SourceCache cache) {
+        sourceCache = cache;
+    }
+
     /**
      * Creates a (semi-) unique short, alphanumeric ID which can be used as token for easier identifaction of exactly one error.
      * Just create one, pass it to the user as reference and log the exception
      *
      * @return A semi-unique, alpahnumeric String.
+     * @see #setIdGenerator(IdGenerator)
      */
     public static String generateID() {
-        long randomId = Math.abs(UUID.randomUUID().getMostSignificantBits());
-        return Long.toString(randomId, Character.MAX_RADIX);
+        return idGenerator.nextId();
+    }
+
+    /**
+     * The generator of the IDs returned by {@link #generateID()}.
+     */
+    public static IdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    /**
+     * Sets the generator of the IDs returned by {@link #generateID()}. Defaults to {@link IdGenerators#sequential()}; use
+     * {@link IdGenerators#randomUuid()} for IDs which are hard to guess.
+     *
+     * @param generator the generator, not <code>null</code>
+     */
+    public static void setIdGenerator(IdGenerator generator) {
+        if (generator == null) {
+            throw new IllegalArgumentException("ID generator must not be null");
+        }
+        idGenerator = generator;
     }
 
     /**
@@ -338,7 +387,10 @@ public final class ExceptionTools {
 
     /**
      * Generates a unique id for the passed exception and logs the passed exception in the logger {@link #LOG} (logger category
-     * <code>EXCEPTION</code>) with <i>error</i> severity.
+     * <code>EXCEPTION</code>) with <i>error</i> severity. If an {@link #setAsyncReporter(AsyncExceptionReporter) async
+     * reporter} is set, the exception is logged in the background and the ID is returned right away. If a
+     * {@link #setDeduplicator(ExceptionDeduplicator) deduplicator} is set, repeats of an exception are only counted and the
+     * ID of the logged occurrence is returned.
      *
      * @param exception The exception you want to report / log.
      * @param logLevel  The log level/severity to use.
@@ -347,8 +399,32 @@ public final class ExceptionTools {
      * @see #generateID()
      */
     public static String report(Level logLevel, String message, Throwable exception) {
+        final ExceptionDeduplicator dedup = deduplicator;
+        if (dedup != null && exception != null) {
+            return dedup.report(logLevel, message, exception);
+        }
+        final String id = generateID();
+        dispatch(logLevel, id, message, exception);
+        return id;
+    }
+
+    /**
+     * Logs the exception via the {@link #getAsyncReporter() async reporter} if set, else synchronously.
+     */
+    static void dispatch(Level logLevel, String id, String message, Throwable exception) {
+        final AsyncExceptionReporter reporter = asyncReporter;
+        if (reporter != null) {
+            reporter.report(logLevel, id, message, exception);
+        } else {
+            log(logLevel, id, message, exception);
+        }
+    }
+
+    /**
+     * Logs the exception with the ID prepended to the message.
+     */
+    static void log(Level logLevel, String id, String message, Throwable exception) {
         int level = logLevel.intValue();
-        String id = generateID();
         if (message == null) {
             message = '[' + id + "] Exception occurred";
         } else {
@@ -366,18 +442,99 @@ public final class ExceptionTools {
         } else {
             LOG.trace(message, exception);
         }
-        return id;
     }
 
-    private static String[] loadCodeFromClasspath(String sourceResource) {
+    /**
+     * The deduplicator logging repeated exceptions passed to <code>report</code> once per time window.
+     *
+     * @return the deduplicator or <code>null</code> if every report is logged
+     */
+    public static ExceptionDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Sets the deduplicator logging repeated exceptions passed to <code>report</code> once per time window. By default every
+     * report is logged.
+     *
+     * @param dedup the deduplicator to use or <code>null</code> to log every report
+     */
+    public static void setDeduplicator(ExceptionDeduplicator dedup) {
+        deduplicator = dedup;
+    }
+
+    /**
+     * Computes a stable fingerprint of the passed exception: a hash over the class, the throwing frame and the frame picked by
+     * {@link #pickCodePointerByPackage(StackTraceElement[], String...)} of the exception and each of its causes. Messages
+     * are ignored, so exceptions thrown at the same spot share a fingerprint even if their messages contain varying values.
+     *
+     * @param exception               the exception, may be <code>null</code>
+     * @param acceptedPackagePrefixes A String array of valid package prefixes
+     * @return an alphanumeric fingerprint, the same for the same code as long as the line numbers don't change
+     */
+    public static String fingerprint(Throwable exception, String... acceptedPackagePrefixes) {
+        long hash = FNV_OFFSET;
+        int depth = 0;
+        for (Throwable t = exception; t != null && depth < MAX_FINGERPRINT_CAUSES; t = t.getCause(), depth++) {
+            hash = hash(hash, t.getClass().getName());
+            final StackTraceElement[] trace = t.getStackTrace();
+            if (trace.length > 0) {
+                hash = hash(hash, trace[0]);
+                final StackTraceElement picked = pickCodePointerByPackage(trace, acceptedPackagePrefixes);
+                if (picked != null && picked != trace[0]) {
+                    hash = hash(hash, picked);
+                }
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return Long.toString(hash >>> 1, Character.MAX_RADIX);
+    }
+
+    private static long hash(long hash, StackTraceElement frame) {
+        hash = hash(hash, frame.getClassName());
+        hash = hash(hash, frame.getMethodName());
+        return (hash ^ frame.getLineNumber()) * FNV_PRIME;
+    }
+
+    /**
+     * 64 bit FNV-1a over the chars, terminated by a zero char.
+     */
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash * FNV_PRIME;
+    }
+
+    /**
+     * The reporter logging the exceptions passed to <code>report</code> in the background.
+     *
+     * @return the reporter or <code>null</code> if exceptions are logged synchronously
+     */
+    public static AsyncExceptionReporter getAsyncReporter() {
+        return asyncReporter;
+    }
+
+    /**
+     * Sets the reporter logging the exceptions passed to <code>report</code> in the background. By default exceptions are
+     * logged by the calling thread. A previous reporter is not closed.
+     *
+     * @param reporter the reporter to use or <code>null</code> to log synchronously
+     */
+    public static void setAsyncReporter(AsyncExceptionReporter reporter) {
+        asyncReporter = reporter;
+    }
+
+    private static SourceLines loadCodeFromClasspath(String sourceResource) {
         try {
             InputStream resourceStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(sourceResource);
             if (resourceStream != null) {
-                InputStreamReader streamReader = new InputStreamReader(resourceStream, StandardCharsets.UTF_8);
                 try {
-                    return loadFileLines(streamReader);
+                    return SourceLines.read(resourceStream);
                 } finally {
-                    streamReader.close();
+                    resourceStream.close();
                 }
             } else {
                 return null; // NOSONAR
@@ -388,50 +545,23 @@ public final class ExceptionTools {
 
     }
 
-    private static String[] loadCodeFromFile(File[] codeSearchPaths, String filename) { //NOPMD
+    private static SourceLines loadCodeFromFile(File[] codeSearchPaths, String filename) { //NOPMD
         if (codeSearchPaths == null) {
             return null; // NOSONAR
         }
         for (File codeSearchPath : codeSearchPaths) {
             File potentialLocation = new File(codeSearchPath, filename);
-            try {
-                Reader reader = new InputStreamReader(new FileInputStream(potentialLocation), StandardCharsets.UTF_8);
+            if (potentialLocation.isFile()) {
                 try {
-                    String[] fileContent = loadFileLines(reader);
-                    if (fileContent != null) {
-                        return fileContent;
-                    }
-                } finally {
-                    try {
-                        reader.close();
-                    } catch (IOException ignore) {
-                        // ignore
-                    }
+                    return SourceLines.read(potentialLocation);
+                } catch (IOException ignore) {
+                    // Yep - do nothing
                 }
-            } catch (IOException ignore) {
-                // Yep - do nothing
             }
         }
         return null;  // NOSONAR
     }
 
-    private static String[] loadFileLines(Reader reader) {
-        try {
-            BufferedReader bufferedReader = new BufferedReader(reader);
-            try {
-                List<String> codeLines = new ArrayList<String>();
-                while (bufferedReader.ready()) {
-                    codeLines.add(bufferedReader.readLine());
-                }
-                return codeLines.toArray(new String[codeLines.size()]);
-            } finally {
-                bufferedReader.close();
-            }
-        } catch (IOException e) {
-            return null;  // NOSONAR
-        }
-    }
-
     /**
      * A value object containing various details about a thrown exception.
      */
@@ -0,0 +1,632 @@
+package de.bentolor.toolbox;
+
+import javax.script.ScriptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lightweight built-in {@link ScriptEngineProvider} for simple template logic without any external script engine. Scripts are
+ * parsed once into an expression tree; evaluation only looks up the variables and invokes cached property accessors.
+ * <p>
+ * Supported is a small Java-like subset:
+ * <ul>
+ * <li>Literals: numbers (<code>42</code>, <code>42L</code>, <code>4.2</code>), strings in single or double quotes,
+ * <code>true</code>, <code>false</code>, <code>null</code></li>
+ * <li>Variables (the named objects of the template) and property/method access like <code>foo.length()</code> or
+ * <code>order.customer.name</code>, resolved like the <code>${...}</code> tokens of the {@link TemplateFormatter} including
+ * <code>Map</code> keys and the {@link TemplateFormatter#isFormatFields() field},
+ * {@link TemplateFormatter#isFormatBeanValues() bean} and {@link TemplateFormatter#isFormatMethods() method} access settings
+ * of the formatter. Registered {@link PropertyAccessor}s are not used.</li>
+ * <li>Operators <code>+ - * / %</code>, <code>== != &lt; &lt;= &gt; &gt;=</code>, <code>&amp;&amp; || !</code> and
+ * <code>?:</code>. <code>+</code> concatenates if one operand is a String</li>
+ * <li>Statements <code>return expr;</code>, <code>if (expr) statement else statement</code>, blocks in braces and
+ * expression statements. Without <code>return</code> the value of the last statement is the script result.</li>
+ * </ul>
+ * Example: <code>if ( foo.length()&gt;10 ) return "lang"; else return "kurz";</code>
+ */
+public final class ExpressionScriptEngineProvider implements ScriptEngineProvider {
+
+    /**
+     * Bits of the property access strategies enabled by the formatter evaluating a script
+     */
+    private static final int FIELDS = 1;
+    private static final int BEAN_VALUES = 2;
+    private static final int METHODS = 4;
+
+    @Override
+    public PreparedScript prepare(String script) throws ScriptException {
+        final Node body = new Parser(script).parseScript();
+        return new PreparedScript() {
+            @Override
+            public Object eval(Map<String, Object> variables, TemplateFormatter formatter) throws Exception {
+                final int access = (formatter.isFormatFields() ? FIELDS : 0)
+                        | (formatter.isFormatBeanValues() ? BEAN_VALUES : 0) | (formatter.isFormatMethods() ? METHODS : 0);
+                Object result = body.eval(variables, access);
+                return result instanceof Returned ? ((Returned) result).value : result;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionScriptEngineProvider";
+    }
+
+    private enum TokenType {
+        NUMBER, STRING, IDENTIFIER, OPERATOR, END
+    }
+
+    private static final class Token {
+        final TokenType type;
+        final String text;
+        final Object value;
+        final int position;
+
+        Token(TokenType type, String text, Object value, int position) {
+            this.type = type;
+            this.text = text;
+            this.value = value;
+            this.position = position;
+        }
+
+        boolean is(String operatorOrKeyword) {
+            return (type == TokenType.OPERATOR || type == TokenType.IDENTIFIER) && text.equals(operatorOrKeyword);
+        }
+    }
+
+    private static final String[] OPERATORS = {"==", "!=", "<=", ">=", "&&", "||", "(", ")", "{", "}", ";", ".", "?", ":", "+",
+            "-", "*", "/", "%", "!", "<", ">"};
+
+    /**
+     * Recursive descent parser creating the expression tree.
+     */
+    private static final class Parser {
+        private final String script;
+        private final List<Token> tokens;
+        private int index;
+
+        Parser(String script) throws ScriptException {
+            this.script = script;
+            this.tokens = tokenize(script);
+        }
+
+        Node parseScript() throws ScriptException {
+            List<Node> statements = new ArrayList<Node>();
+            while (peek().type != TokenType.END) {
+                statements.add(parseStatement());
+            }
+            return new Block(statements.toArray(new Node[statements.size()]));
+        }
+
+        private Node parseStatement() throws ScriptException {
+            if (accept(";")) {
+                return new Constant(null);
+            }
+            if (accept("{")) {
+                List<Node> statements = new ArrayList<Node>();
+                while (!accept("}")) {
+                    if (peek().type == TokenType.END) {
+                        throw error("'}' expected", peek());
+                    }
+                    statements.add(parseStatement());
+                }
+                return new Block(statements.toArray(new Node[statements.size()]));
+            }
+            if (accept("return")) {
+                Node value = peek().is(";") || peek().type == TokenType.END ? new Constant(null) : parseExpression();
+                accept(";");
+                return new Return(value);
+            }
+            if (accept("if")) {
+                expect("(");
+                Node condition = parseExpression();
+                expect(")");
+                Node then = parseStatement();
+                Node otherwise = accept("else") ? parseStatement() : null;
+                return new If(condition, then, otherwise);
+            }
+            Node expression = parseExpression();
+            accept(";");
+            return expression;
+        }
+
+        private Node parseExpression() throws ScriptException {
+            Node condition = parseBinary(0);
+            if (accept("?")) {
+                Node then = parseExpression();
+                expect(":");
+                return new Conditional(condition, then, parseExpression());
+            }
+            return condition;
+        }
+
+        /**
+         * Binary operators grouped by ascending precedence.
+         */
+        private static final String[][] PRECEDENCE = {{"||"}, {"&&"}, {"==", "!="}, {"<", "<=", ">", ">="}, {"+", "-"},
+                {"*", "/", "%"}};
+
+        private Node parseBinary(int level) throws ScriptException {
+            if (level == PRECEDENCE.length) {
+                return parseUnary();
+            }
+            Node left = parseBinary(level + 1);
+            String operator;
+            while ((operator = acceptAny(PRECEDENCE[level])) != null) {
+                left = new Binary(operator, left, parseBinary(level + 1));
+            }
+            return left;
+        }
+
+        private Node parseUnary() throws ScriptException {
+            if (accept("!")) {
+                return new Not(parseUnary());
+            }
+            if (accept("-")) {
+                return new Binary("-", new Constant(0), parseUnary());
+            }
+            return parsePostfix();
+        }
+
+        private Node parsePostfix() throws ScriptException {
+            Node node = parsePrimary();
+            while (accept(".")) {
+                Token name = next();
+                if (name.type != TokenType.IDENTIFIER) {
+                    throw error("Property name expected", name);
+                }
+                boolean call = accept("(");
+                if (call) {
+                    expect(")");
+                }
+                node = new Property(node, name.text, call);
+            }
+            return node;
+        }
+
+        private Node parsePrimary() throws ScriptException {
+            Token token = next();
+            switch (token.type) {
+                case NUMBER:
+                case STRING:
+                    return new Constant(token.value);
+                case IDENTIFIER:
+                    if (token.text.equals("true")) {
+                        return new Constant(Boolean.TRUE);
+                    } else if (token.text.equals("false")) {
+                        return new Constant(Boolean.FALSE);
+                    } else if (token.text.equals("null")) {
+                        return new Constant(null);
+                    }
+                    return new Variable(token.text);
+                default:
+                    if (token.is("(")) {
+                        Node expression = parseExpression();
+                        expect(")");
+                        return expression;
+                    }
+                    throw error("Unexpected " + (token.type == TokenType.END ? "end of script" : "'" + token.text + "'"), token);
+            }
+        }
+
+        private Token peek() {
+            return tokens.get(index);
+        }
+
+        private Token next() {
+            Token token = tokens.get(index);
+            if (token.type != TokenType.END) {
+                index++;
+            }
+            return token;
+        }
+
+        private boolean accept(String operatorOrKeyword) {
+            if (peek().is(operatorOrKeyword)) {
+                index++;
+                return true;
+            }
+            return false;
+        }
+
+        private String acceptAny(String[] operators) {
+            for (String operator : operators) {
+                if (peek().type == TokenType.OPERATOR && accept(operator)) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+
+        private void expect(String operator) throws ScriptException {
+            if (!accept(operator)) {
+                throw error("'" + operator + "' expected", peek());
+            }
+        }
+
+        private ScriptException error(String message, Token token) {
+            return new ScriptException(message + " at position " + token.position + " in: " + script);
+        }
+
+        private static List<Token> tokenize(String script) throws ScriptException {
+            List<Token> tokens = new ArrayList<Token>();
+            int pos = 0;
+            final int length = script.length();
+            while (pos < length) {
+                final char c = script.charAt(pos);
+                if (Character.isWhitespace(c)) {
+                    pos++;
+                } else if (Character.isDigit(c)) {
+                    int end = pos;
+                    while (end < length && Character.isDigit(script.charAt(end))) {
+                        end++;
+                    }
+                    boolean decimal = end + 1 < length && script.charAt(end) == '.' && Character.isDigit(script.charAt(end + 1));
+                    if (decimal) {
+                        end++;
+                        while (end < length && Character.isDigit(script.charAt(end))) {
+                            end++;
+                        }
+                    }
+                    final String text = script.substring(pos, end);
+                    final Object value;
+                    if (decimal) {
+                        value = Double.valueOf(text);
+                    } else if (end < length && (script.charAt(end) == 'L' || script.charAt(end) == 'l')) {
+                        value = Long.valueOf(text);
+                        end++;
+                    } else {
+                        long number = Long.parseLong(text);
+                        value = number <= Integer.MAX_VALUE ? Integer.valueOf((int) number) : Long.valueOf(number);
+                    }
+                    tokens.add(new Token(TokenType.NUMBER, text, value, pos));
+                    pos = end;
+                } else if (c == '"' || c == '\'') {
+                    StringBuilder value = new StringBuilder();
+                    int end = pos + 1;
+                    while (end < length && script.charAt(end) != c) {
+                        char ch = script.charAt(end++);
+                        if (ch == '\\' && end < length) {
+                            ch = script.charAt(end++);
+                            ch = ch == 'n' ? '\n' : ch == 't' ? '\t' : ch == 'r' ? '\r' : ch;
+                        }
+                        value.append(ch);
+                    }
+                    if (end >= length) {
+                        throw new ScriptException("Unterminated string at position " + pos + " in: " + script);
+                    }
+                    tokens.add(new Token(TokenType.STRING, script.substring(pos, end + 1), value.toString(), pos));
+                    pos = end + 1;
+                } else if (Character.isJavaIdentifierStart(c)) {
+                    int end = pos + 1;
+                    while (end < length && Character.isJavaIdentifierPart(script.charAt(end))) {
+                        end++;
+                    }
+                    tokens.add(new Token(TokenType.IDENTIFIER, script.substring(pos, end), null, pos));
+                    pos = end;
+                } else {
+                    String operator = null;
+                    for (String candidate : OPERATORS) {
+                        if (script.startsWith(candidate, pos)) {
+                            operator = candidate;
+                            break;
+                        }
+                    }
+                    if (operator == null) {
+                        throw new ScriptException("Unexpected character '" + c + "' at position " + pos + " in: " + script);
+                    }
+                    tokens.add(new Token(TokenType.OPERATOR, operator, null, pos));
+                    pos += operator.length();
+                }
+            }
+            tokens.add(new Token(TokenType.END, "", null, length));
+            return tokens;
+        }
+    }
+
+    private abstract static class Node {
+        abstract Object eval(Map<String, Object> variables, int access) throws Exception;
+    }
+
+    /**
+     * Result of an executed <code>return</code> statement travelling up to the script.
+     */
+    private static final class Returned {
+        final Object value;
+
+        Returned(Object value) {
+            this.value = value;
+        }
+    }
+
+    private static final class Constant extends Node {
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Map<String, Object> variables, int access) {
+            return value;
+        }
+    }
+
+    private static final class Variable extends Node {
+        private final String name;
+
+        Variable(String name) {
+            this.name = name;
+        }
+
+        @Override
+        Object eval(Map<String, Object> variables, int access) throws ScriptException {
+            Object value = variables.get(name);
+            if (value == null && !variables.containsKey(name)) {
+                throw new ScriptException("Undefined variable: " + name);
+            }
+            return value;
+        }
+    }
+
+    private static final class Property extends Node {
+        private final Node target;
+        private final String name;
+        private final boolean call;
+        /**
+         * Accessor resolved for the last seen target class and access settings.
+         */
+        private volatile ResolvedAccessor resolved;
+
+        Property(Node target, String name, boolean call) {
+            this.target = target;
+            this.name = name;
+            this.call = call;
+        }
+
+        @Override
+        Object eval(Map<String, Object> variables, int access) throws Exception {
+            final Object value = target.eval(variables, access);
+            if (value == null) {
+                throw new ScriptException("Can't access " + name + " of null");
+            }
+            if (!call && value instanceof Map && ((Map<?, ?>) value).containsKey(name)) {
+                return ((Map<?, ?>) value).get(name);
+            }
+            ResolvedAccessor accessor = resolved;
+            if (accessor == null || accessor.type != value.getClass() || accessor.access != access) {
+                // calls only match methods, plain names resolve like template tokens
+                PropertyAccessors.Accessor found = PropertyAccessors.forClass(value.getClass()).accessor(name,
+                        !call && (access & FIELDS) != 0, !call && (access & BEAN_VALUES) != 0, (access & METHODS) != 0);
+                if (found == null) {
+                    throw new ScriptException("No " + (call ? "method " + name + "()" : "property " + name) + " in "
+                            + value.getClass().getName());
+                }
+                accessor = new ResolvedAccessor(value.getClass(), access, found);
+                resolved = accessor;
+            }
+            return accessor.accessor.get(value);
+        }
+    }
+
+    private static final class ResolvedAccessor {
+        final Class<?> type;
+        final int access;
+        final PropertyAccessors.Accessor accessor;
+
+        ResolvedAccessor(Class<?> type, int access, PropertyAccessors.Accessor accessor) {
+            this.type = type;
+            this.access = access;
+            this.accessor = accessor;
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Object eval(Map<String, Object> variables, int access) throws Exception {
+            return !truth(operand.eval(variables, access));
+        }
+    }
+
+    private static final class Conditional extends Node {
+        private final Node condition;
+        private final Node then;
+        private final Node otherwise;
+
+        Conditional(Node condition, Node then, Node otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        Object eval(Map<String, Object> variables, int access) throws Exception {
+            return truth(condition.eval(variables, access))
+                    ? then.eval(variables, access)
+                    : otherwise.eval(variables, access);
+        }
+    }
+
+    private static final class Binary extends Node {
+        private final String operator;
+        private final Node left;
+        private final Node right;
+
+        Binary(String operator, Node left, Node right) {
+            this.operator = operator.intern();
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        @SuppressWarnings("StringEquality") // operators are interned
+        Object eval(Map<String, Object> variables, int access) throws Exception {
+            final Object l = left.eval(variables, access);
+            if (operator == "&&") {
+                return truth(l) && truth(right.eval(variables, access));
+            } else if (operator == "||") {
+                return truth(l) || truth(right.eval(variables, access));
+            }
+
+            final Object r = right.eval(variables, access);
+            if (operator == "==") {
+                return equal(l, r);
+            } else if (operator == "!=") {
+                return !equal(l, r);
+            } else if (operator == "<") {
+                return compare(l, r) < 0;
+            } else if (operator == "<=") {
+                return compare(l, r) <= 0;
+            } else if (operator == ">") {
+                return compare(l, r) > 0;
+            } else if (operator == ">=") {
+                return compare(l, r) >= 0;
+            } else if (operator == "+" && (l instanceof String || r instanceof String)) {
+                return String.valueOf(l) + r;
+            }
+            return arithmetic(operator, l, r);
+        }
+    }
+
+    private static final class Return extends Node {
+        private final Node value;
+
+        Return(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Map<String, Object> variables, int access) throws Exception {
+            return new Returned(value.eval(variables, access));
+        }
+    }
+
+    private static final class If extends Node {
+        private final Node condition;
+        private final Node then;
+        private final Node otherwise;
+
+        If(Node condition, Node then, Node otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        Object eval(Map<String, Object> variables, int access) throws Exception {
+            if (truth(condition.eval(variables, access))) {
+                return then.eval(variables, access);
+            }
+            return otherwise != null ? otherwise.eval(variables, access) : null;
+        }
+    }
+
+    private static final class Block extends Node {
+        private final Node[] statements;
+
+        Block(Node[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        Object eval(Map<String, Object> variables, int access) throws Exception {
+            Object last = null;
+            for (Node statement : statements) {
+                last = statement.eval(variables, access);
+                if (last instanceof Returned) {
+                    break;
+                }
+            }
+            return last;
+        }
+    }
+
+    private static boolean truth(Object value) throws ScriptException {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        throw new ScriptException("Boolean value expected: " + value);
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    private static boolean equal(Object l, Object r) {
+        if (l instanceof Number && r instanceof Number) {
+            return isIntegral(l) && isIntegral(r)
+                    ? ((Number) l).longValue() == ((Number) r).longValue()
+                    : ((Number) l).doubleValue() == ((Number) r).doubleValue();
+        }
+        return l == null ? r == null : l.equals(r);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object l, Object r) throws ScriptException {
+        if (l instanceof Number && r instanceof Number) {
+            return isIntegral(l) && isIntegral(r)
+                    ? Long.compare(((Number) l).longValue(), ((Number) r).longValue())
+                    : Double.compare(((Number) l).doubleValue(), ((Number) r).doubleValue());
+        }
+        if (l instanceof Comparable && r != null && l.getClass() == r.getClass()) {
+            return ((Comparable<Object>) l).compareTo(r);
+        }
+        throw new ScriptException("Can't compare " + l + " and " + r);
+    }
+
+    private static Object arithmetic(String operator, Object l, Object r) throws ScriptException {
+        if (!(l instanceof Number) || !(r instanceof Number)) {
+            throw new ScriptException("Numbers expected for '" + operator + "': " + l + ", " + r);
+        }
+        final Number a = (Number) l;
+        final Number b = (Number) r;
+        if (isIntegral(a) && isIntegral(b)) {
+            final long x = a.longValue();
+            final long y = b.longValue();
+            final long result;
+            switch (operator.charAt(0)) {
+                case '+':
+                    result = x + y;
+                    break;
+                case '-':
+                    result = x - y;
+                    break;
+                case '*':
+                    result = x * y;
+                    break;
+                case '/':
+                    result = x / y;
+                    break;
+                default:
+                    result = x % y;
+                    break;
+            }
+            if (a instanceof Long || b instanceof Long) {
+                return result;
+            }
+            return (int) result;
+        }
+
+        final double x = a.doubleValue();
+        final double y = b.doubleValue();
+        switch (operator.charAt(0)) {
+            case '+':
+                return x + y;
+            case '-':
+                return x - y;
+            case '*':
+                return x * y;
+            case '/':
+                return x / y;
+            default:
+                return x % y;
+        }
+    }
+}
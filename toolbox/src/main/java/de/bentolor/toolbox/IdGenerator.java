@@ -0,0 +1,18 @@
+package de.bentolor.toolbox;
+
+/**
+ * Creates the reference IDs of {@link ExceptionTools#generateID()}. IDs must be alphanumeric and should be short, as they
+ * are shown to users.
+ *
+ * @see IdGenerators
+ * @see ExceptionTools#setIdGenerator(IdGenerator)
+ */
+public interface IdGenerator {
+
+    /**
+     * Creates a new ID. Called concurrently.
+     *
+     * @return an alphanumeric, non-empty String
+     */
+    String nextId();
+}
@@ -0,0 +1,108 @@
+package de.bentolor.toolbox;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The built-in {@link IdGenerator}s.
+ */
+public final class IdGenerators {
+
+    /**
+     * Number of counter values claimed by a thread at once
+     */
+    static final int BLOCK_SIZE = 1024;
+    /**
+     * Length of the per-JVM prefix of {@link #sequential()}
+     */
+    static final int PREFIX_LENGTH = 8;
+
+    private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    private static final IdGenerator RANDOM_UUID = new IdGenerator() {
+        @Override
+        public String nextId() {
+            long randomId = Math.abs(UUID.randomUUID().getMostSignificantBits());
+            return Long.toString(randomId, Character.MAX_RADIX);
+        }
+    };
+
+    private static final IdGenerator SEQUENTIAL = new Sequential();
+
+    private IdGenerators() {
+    }
+
+    /**
+     * The default generator: a random prefix chosen once per JVM followed by a counter, both in radix 36. Threads claim
+     * blocks of {@value #BLOCK_SIZE} counter values from a shared counter and encode the IDs into a reused buffer, so
+     * generating an ID neither locks nor contends. The IDs are unique within the JVM; across JVMs they are as unique as the
+     * random prefix of 41 bits. They are predictable and must not be used as secrets.
+     */
+    public static IdGenerator sequential() {
+        return SEQUENTIAL;
+    }
+
+    /**
+     * The random part of a {@link UUID#randomUUID()} in radix 36, as generated by the former versions of
+     * {@link ExceptionTools#generateID()}. Uses a <code>SecureRandom</code>, which may contend and block on entropy under
+     * load.
+     */
+    public static IdGenerator randomUuid() {
+        return RANDOM_UUID;
+    }
+
+    private static final class Sequential implements IdGenerator {
+
+        private final char[] prefix = new char[PREFIX_LENGTH];
+        private final AtomicLong blocks = new AtomicLong();
+        private final ThreadLocal<Block> threadBlock = new ThreadLocal<Block>() {
+            @Override
+            protected Block initialValue() {
+                return new Block();
+            }
+        };
+
+        Sequential() {
+            // one SecureRandom call per JVM
+            long random = UUID.randomUUID().getLeastSignificantBits() & (1L << 41) - 1;
+            for (int i = PREFIX_LENGTH - 1; i >= 0; i--) {
+                prefix[i] = DIGITS[(int) (random % 36)];
+                random /= 36;
+            }
+        }
+
+        @Override
+        public String nextId() {
+            final Block block = threadBlock.get();
+            if (block.next == block.limit) {
+                block.next = blocks.getAndIncrement() * BLOCK_SIZE;
+                block.limit = block.next + BLOCK_SIZE;
+            }
+            long value = block.next++;
+            final char[] buffer = block.buffer;
+            int start = buffer.length;
+            do {
+                buffer[--start] = DIGITS[(int) (value % 36)];
+                value /= 36;
+            } while (value > 0);
+            start -= PREFIX_LENGTH;
+            System.arraycopy(prefix, 0, buffer, start, PREFIX_LENGTH);
+            return new String(buffer, start, buffer.length - start);
+        }
+
+        @Override
+        public String toString() {
+            return "IdGenerators.sequential()";
+        }
+    }
+
+    /**
+     * The counter values claimed by a thread and its buffer.
+     */
+    private static final class Block {
+        // prefix plus the 13 digits of the largest long
+        final char[] buffer = new char[PREFIX_LENGTH + 13];
+        long next;
+        long limit;
+    }
+}
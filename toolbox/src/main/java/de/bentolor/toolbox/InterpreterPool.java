@@ -0,0 +1,280 @@
+package de.bentolor.toolbox;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of script interpreters of a {@link TemplateFormatter}. Interpreters are created by
+ * {@link TemplateFormatter#createInterpreter()}, have all passed variables unset after each script and are
+ * {@link TemplateFormatter#resetInterpreter(Object) reset} before they are returned to the pool, so nothing a script defined
+ * is seen by later renders. Interpreters which can't be reset are not pooled. At most <code>maxIdle</code> interpreters are
+ * kept.
+ * <p>
+ * The interpreter methods returned by {@link TemplateFormatter#getInterpreterSetMethod()},
+ * {@link TemplateFormatter#getInterpreterUnsetMethod()} and {@link TemplateFormatter#getInterpreterEvalMethod()} are looked up
+ * once and invoked as <code>MethodHandle</code>s afterwards.
+ * <p>
+ * Interpreters implementing <code>javax.script.Compilable</code> (i.e. JSR-223 engines) are not driven via these methods. Their
+ * scripts are compiled once and later renders just evaluate the <code>CompiledScript</code> with fresh bindings holding the
+ * variables, so these interpreters need no reset. If the engine factory declares the engine thread-safe (the
+ * <code>THREADING</code> parameter is set), each distinct script is compiled once per pool and shared by all interpreters and
+ * threads. Otherwise it is compiled once per pooled interpreter, and on every call if no interpreters are pooled.
+ * <p>
+ * Other interpreters, like BeanShell, offer no compiled form: they parse the script on every evaluation.
+ */
+final class InterpreterPool {
+
+    private static final MethodType SET_TYPE = MethodType.methodType(void.class, Object.class, String.class, Object.class);
+    private static final MethodType UNSET_TYPE = MethodType.methodType(void.class, Object.class, String.class);
+    private static final MethodType EVAL_TYPE = MethodType.methodType(Object.class, Object.class, String.class);
+    /**
+     * Maximum number of compiled scripts kept per pool resp. per interpreter
+     */
+    private static final int MAX_COMPILED_SCRIPTS = 128;
+
+    private final TemplateFormatter formatter;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<Interpreter> idle = new ConcurrentLinkedQueue<Interpreter>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private volatile MethodHandle setHandle;
+    private volatile MethodHandle unsetHandle;
+    private volatile MethodHandle evalHandle;
+    private volatile BeanShellReset beanShellReset;
+    /**
+     * Scripts compiled by thread-safe engines. Access ordered, guarded by itself
+     */
+    private final Map<String, CompiledScript> sharedScripts = newCompiledScripts();
+
+    InterpreterPool(TemplateFormatter formatter, int maxIdle) {
+        this.formatter = formatter;
+        this.maxIdle = maxIdle;
+    }
+
+    int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Takes an idle interpreter out of the pool or creates a new one.
+     */
+    Interpreter acquire() throws Exception {
+        Interpreter interpreter = idle.poll();
+        if (interpreter != null) {
+            idleCount.decrementAndGet();
+            return interpreter;
+        }
+        return new Interpreter(formatter.createInterpreter());
+    }
+
+    /**
+     * Resets an interpreter and returns it to the pool. Interpreters left in an unknown state by a failing script must not be
+     * returned.
+     */
+    void release(Interpreter interpreter) {
+        if (idleCount.incrementAndGet() <= maxIdle && reset(interpreter)) {
+            idle.offer(interpreter);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    private boolean reset(Interpreter interpreter) {
+        if (interpreter.target instanceof Compilable) {
+            return true;
+        }
+        try {
+            return formatter.resetInterpreter(interpreter.target);
+        } catch (Exception e) {
+            TemplateFormatter.logScriptException(e);
+            return false;
+        }
+    }
+
+    /**
+     * Gives a BeanShell interpreter a fresh global <code>NameSpace</code>, dropping all variables, methods and imports its
+     * scripts defined.
+     *
+     * @return <code>false</code> if the passed object is no BeanShell interpreter
+     * @throws InvocationTargetException wrapping any problem reported by BeanShell
+     */
+    boolean resetBeanShell(Object interpreter) throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException,
+            InvocationTargetException {
+        final Class<?> type = interpreter.getClass();
+        if (!"bsh.Interpreter".equals(type.getName())) {
+            return false;
+        }
+        BeanShellReset reset = beanShellReset;
+        if (reset == null || reset.type != type) {
+            reset = new BeanShellReset(type);
+            beanShellReset = reset;
+        }
+        try {
+            final Object nameSpace = reset.newNameSpace.invokeExact(reset.classManager.invokeExact(interpreter), "global");
+            reset.setNameSpace.invokeExact(interpreter, nameSpace);
+        } catch (Throwable t) { // NOSONAR Same semantics as Method.invoke(): wrap everything thrown by the interpreter
+            throw new InvocationTargetException(t);
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates the script with the passed variables set and unsets them afterwards, even if the script failed.
+     *
+     * @throws InvocationTargetException wrapping any problem reported by the interpreter itself
+     */
+    @SuppressWarnings("MethodWithTooExceptionsDeclared")
+    Object eval(Interpreter pooled, String script, Map<String, Object> parameters)
+            throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (pooled.target instanceof Compilable) {
+            return evalCompiled(pooled, script, parameters);
+        }
+
+        final Object interpreter = pooled.target;
+        MethodHandle set = setHandle;
+        MethodHandle unset = unsetHandle;
+        MethodHandle eval = evalHandle;
+        if (set == null || unset == null || eval == null) {
+            set = toHandle(formatter.getInterpreterSetMethod(), SET_TYPE);
+            unset = toHandle(formatter.getInterpreterUnsetMethod(), UNSET_TYPE);
+            eval = toHandle(formatter.getInterpreterEvalMethod(), EVAL_TYPE);
+            setHandle = set;
+            unsetHandle = unset;
+            evalHandle = eval;
+        }
+
+        final Set<Map.Entry<String, Object>> variables = parameters.entrySet();
+        try {
+            try {
+                for (Map.Entry<String, Object> stringObjectEntry : variables) {
+                    set.invokeExact(interpreter, stringObjectEntry.getKey(), stringObjectEntry.getValue());
+                }
+
+                return (Object) eval.invokeExact(interpreter, script);
+            } finally {
+                // reset interpreter
+                for (String objectName : parameters.keySet()) {
+                    unset.invokeExact(interpreter, objectName);
+                }
+            }
+        } catch (Throwable t) { // NOSONAR Same semantics as Method.invoke(): wrap everything thrown by the interpreter
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    /**
+     * Evaluates the compiled script with fresh bindings holding the variables.
+     *
+     * @throws InvocationTargetException wrapping any problem reported by the engine
+     */
+    private Object evalCompiled(Interpreter pooled, String script, Map<String, Object> parameters)
+            throws InvocationTargetException {
+        final ScriptEngine engine = (ScriptEngine) pooled.target;
+        final Bindings bindings = engine.createBindings();
+        bindings.putAll(parameters);
+        try {
+            final CompiledScript compiled = isThreadSafe(engine) ? sharedScript(engine, script) : pooled.compiledScript(script);
+            return compiled.eval(bindings);
+        } catch (ScriptException e) {
+            throw new InvocationTargetException(e);
+        } catch (RuntimeException e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    /**
+     * May scripts compiled by the engine be evaluated by multiple threads at once?
+     */
+    private static boolean isThreadSafe(ScriptEngine engine) {
+        final ScriptEngineFactory factory = engine.getFactory();
+        return factory != null && factory.getParameter("THREADING") != null;
+    }
+
+    private CompiledScript sharedScript(ScriptEngine engine, String script) throws ScriptException {
+        CompiledScript compiled;
+        synchronized (sharedScripts) {
+            compiled = sharedScripts.get(script);
+        }
+        if (compiled == null) {
+            // compiled outside the lock, concurrent compilation of the same script is harmless
+            compiled = ((Compilable) engine).compile(script);
+            synchronized (sharedScripts) {
+                sharedScripts.put(script, compiled);
+            }
+        }
+        return compiled;
+    }
+
+    private static Map<String, CompiledScript> newCompiledScripts() {
+        return new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                return size() > MAX_COMPILED_SCRIPTS;
+            }
+        };
+    }
+
+    /**
+     * An interpreter instance together with the scripts compiled by it.
+     */
+    static final class Interpreter {
+        final Object target;
+        private Map<String, CompiledScript> compiledScripts;
+
+        Interpreter(Object target) {
+            this.target = target;
+        }
+
+        private CompiledScript compiledScript(String script) throws ScriptException {
+            if (compiledScripts == null) {
+                compiledScripts = newCompiledScripts();
+            }
+            CompiledScript compiled = compiledScripts.get(script);
+            if (compiled == null) {
+                compiled = ((Compilable) target).compile(script);
+                compiledScripts.put(script, compiled);
+            }
+            return compiled;
+        }
+    }
+
+    /**
+     * The BeanShell methods creating and setting a new global <code>NameSpace</code>, resolved once.
+     */
+    private static final class BeanShellReset {
+        final Class<?> type;
+        final MethodHandle classManager;
+        final MethodHandle newNameSpace;
+        final MethodHandle setNameSpace;
+
+        BeanShellReset(Class<?> type) throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException {
+            this.type = type;
+            final Class<?> classManagerType = Class.forName("bsh.BshClassManager", false, type.getClassLoader());
+            final Class<?> nameSpaceType = Class.forName("bsh.NameSpace", false, type.getClassLoader());
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            classManager = lookup.unreflect(type.getMethod("getClassManager"))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            newNameSpace = lookup.unreflectConstructor(nameSpaceType.getConstructor(classManagerType, String.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, String.class));
+            setNameSpace = lookup.unreflect(type.getMethod("setNameSpace", nameSpaceType))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }
+    }
+
+    private static MethodHandle toHandle(Method method, MethodType type) throws IllegalAccessException {
+        return MethodHandles.lookup().unreflect(method).asType(type);
+    }
+}
@@ -0,0 +1,104 @@
+package de.bentolor.toolbox;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.util.Map;
+
+/**
+ * {@link ScriptEngineProvider} running the template scripts with a JSR-223 (<code>javax.script</code>) engine. Engines
+ * implementing <code>Compilable</code> compile every script once; others parse the script text on each evaluation. The
+ * engine accesses the properties of the named objects by its own rules, the property access settings of the formatter don't
+ * apply.
+ * <p>
+ * Engines which do not declare the <code>THREADING</code> parameter are not thread-safe. Evaluations on such engines are
+ * serialized.
+ */
+public final class Jsr223ScriptEngineProvider implements ScriptEngineProvider {
+
+    private final ScriptEngine engine;
+    private final boolean threadSafe;
+
+    /**
+     * Uses the passed engine for all scripts.
+     */
+    public Jsr223ScriptEngineProvider(ScriptEngine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("No script engine passed");
+        }
+        this.engine = engine;
+        final ScriptEngineFactory factory = engine.getFactory();
+        this.threadSafe = factory != null && factory.getParameter("THREADING") != null;
+    }
+
+    /**
+     * Looks up the engine registered under the passed name, i.e. <code>"beanshell"</code> or <code>"groovy"</code>.
+     *
+     * @throws IllegalArgumentException if no such engine is available
+     */
+    public Jsr223ScriptEngineProvider(String engineName) {
+        this(lookupEngine(engineName));
+    }
+
+    private static ScriptEngine lookupEngine(String engineName) {
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName(engineName);
+        if (engine == null) {
+            throw new IllegalArgumentException("No script engine available with name " + engineName);
+        }
+        return engine;
+    }
+
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+
+    @Override
+    public PreparedScript prepare(final String script) throws ScriptException {
+        if (engine instanceof Compilable) {
+            final CompiledScript compiled;
+            synchronized (engine) {
+                compiled = ((Compilable) engine).compile(script);
+            }
+            return new PreparedScript() {
+                @Override
+                public Object eval(Map<String, Object> variables, TemplateFormatter formatter) throws ScriptException {
+                    final Bindings bindings = bindings(variables);
+                    if (threadSafe) {
+                        return compiled.eval(bindings);
+                    }
+                    synchronized (engine) {
+                        return compiled.eval(bindings);
+                    }
+                }
+            };
+        }
+
+        return new PreparedScript() {
+            @Override
+            public Object eval(Map<String, Object> variables, TemplateFormatter formatter) throws ScriptException {
+                final Bindings bindings = bindings(variables);
+                if (threadSafe) {
+                    return engine.eval(script, bindings);
+                }
+                synchronized (engine) {
+                    return engine.eval(script, bindings);
+                }
+            }
+        };
+    }
+
+    private Bindings bindings(Map<String, Object> variables) {
+        final Bindings bindings = engine.createBindings();
+        bindings.putAll(variables);
+        return bindings;
+    }
+
+    @Override
+    public String toString() {
+        return "Jsr223ScriptEngineProvider[" + engine + ']';
+    }
+}
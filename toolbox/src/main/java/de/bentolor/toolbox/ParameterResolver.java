@@ -0,0 +1,36 @@
+package de.bentolor.toolbox;
+
+/**
+ * A source of named objects queried by {@link TemplateFormatter#formatWith(String, ParameterResolver)} only for the names the
+ * template references, so costly objects not used by a template are never created:
+ * <pre>
+ * formatter.formatWith(template, new ParameterResolver() {
+ *     public Object resolve(String name) {
+ *         if ("customer".equals(name)) {
+ *             return customerService.load(id);
+ *         } else if ("history".equals(name)) {
+ *             return historyService.load(id);
+ *         }
+ *         return ParameterResolver.UNRESOLVED;
+ *     }
+ * });
+ * </pre>
+ *
+ * @see CompiledTemplate#getObjectNames()
+ */
+public interface ParameterResolver {
+
+    /**
+     * Returned by {@link #resolve(String)} for unknown names. Tokens referring to them are rendered like tokens referring to
+     * an object missing in the parameter map.
+     */
+    Object UNRESOLVED = TemplateFormatter.UNRESOLVED;
+
+    /**
+     * Provides a named object. Called at most once per name and render.
+     *
+     * @param name the name of the object, i.e. <code>customer</code> for a token <code>${customer.name}</code>
+     * @return the object, may be <code>null</code>, or {@link #UNRESOLVED} if there is no object of this name
+     */
+    Object resolve(String name);
+}
@@ -0,0 +1,39 @@
+package de.bentolor.toolbox;
+
+/**
+ * Hand-written property access for a domain type, registered with
+ * {@link TemplateFormatter#registerPropertyAccessor(Class, PropertyAccessor)}. It is asked before any other strategy and avoids
+ * reflection for hot types entirely:
+ * <pre>
+ * formatter.registerPropertyAccessor(Order.class, new PropertyAccessor&lt;Order&gt;() {
+ *     public Object get(Order order, String name) {
+ *         if ("id".equals(name)) {
+ *             return order.getId();
+ *         } else if ("customer".equals(name)) {
+ *             return order.getCustomer();
+ *         }
+ *         return PropertyAccessor.UNRESOLVED;
+ *     }
+ * });
+ * </pre>
+ *
+ * @param <T> the type of objects handled
+ */
+public interface PropertyAccessor<T> {
+
+    /**
+     * Returned by {@link #get(Object, String)} for names not handled by the accessor. The formatter then tries its other
+     * strategies.
+     */
+    Object UNRESOLVED = TemplateFormatter.UNRESOLVED;
+
+    /**
+     * Reads a property.
+     *
+     * @param target the object to read from, never <code>null</code>
+     * @param name   the property name, i.e. <code>name</code> for a token <code>${customer.name}</code>
+     * @return the property value, may be <code>null</code>, or {@link #UNRESOLVED} if the name is not handled
+     * @throws Exception treated like an exception thrown by a getter
+     */
+    Object get(T target, String name) throws Exception;
+}
@@ -0,0 +1,104 @@
+package de.bentolor.toolbox;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable set of the {@link PropertyAccessor}s registered with a {@link TemplateFormatter}. Registering another accessor
+ * creates a new registry with an incremented {@link #getVersion() version}.
+ * <p>
+ * The accessor for a class is the one registered for the class itself or otherwise the first one registered for any of its
+ * supertypes. It is looked up once per class and attached to the class via <code>ClassValue</code>, so the registry does not
+ * prevent class loaders from being unloaded.
+ */
+final class PropertyAccessorRegistry {
+
+    static final PropertyAccessorRegistry EMPTY = new PropertyAccessorRegistry(
+            new LinkedHashMap<Class<?>, PropertyAccessor<?>>(), 0);
+
+    /**
+     * Cached for classes without an accessor.
+     */
+    private static final PropertyAccessor<Object> NONE = new PropertyAccessor<Object>() {
+        @Override
+        public Object get(Object target, String name) {
+            return PropertyAccessor.UNRESOLVED;
+        }
+    };
+
+    private final Map<Class<?>, PropertyAccessor<?>> accessors;
+    private final int version;
+    private final ClassValue<PropertyAccessor<Object>> byClass = new ClassValue<PropertyAccessor<Object>>() {
+        @Override
+        protected PropertyAccessor<Object> computeValue(Class<?> type) {
+            return lookup(type);
+        }
+    };
+
+    private PropertyAccessorRegistry(Map<Class<?>, PropertyAccessor<?>> accessors, int version) {
+        this.accessors = accessors;
+        this.version = version;
+    }
+
+    /**
+     * A new registry containing the passed accessor in addition.
+     */
+    PropertyAccessorRegistry with(Class<?> type, PropertyAccessor<?> accessor) {
+        Map<Class<?>, PropertyAccessor<?>> copy = new LinkedHashMap<Class<?>, PropertyAccessor<?>>(accessors);
+        copy.put(type, accessor);
+        return new PropertyAccessorRegistry(copy, version + 1);
+    }
+
+    boolean isEmpty() {
+        return accessors.isEmpty();
+    }
+
+    /**
+     * Incremented with every registration.
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * The accessor responsible for the passed class.
+     *
+     * @return the accessor or <code>null</code> if there is none
+     */
+    PropertyAccessor<Object> forClass(Class<?> type) {
+        if (accessors.isEmpty()) {
+            return null;
+        }
+        final PropertyAccessor<Object> accessor = byClass.get(type);
+        return accessor != PropertyAccessorRegistry.NONE ? accessor : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private PropertyAccessor<Object> lookup(Class<?> type) {
+        PropertyAccessor<?> accessor = accessors.get(type);
+        if (accessor == null) {
+            for (Map.Entry<Class<?>, PropertyAccessor<?>> entry : accessors.entrySet()) {
+                if (entry.getKey().isAssignableFrom(type)) {
+                    accessor = entry.getValue();
+                    break;
+                }
+            }
+        }
+        return accessor != null ? (PropertyAccessor<Object>) accessor : PropertyAccessorRegistry.NONE;
+    }
+
+    /**
+     * Reads a property via the passed accessor.
+     *
+     * @return the value or {@link TemplateFormatter#UNRESOLVED}
+     * @throws InvocationTargetException wrapping anything thrown by the accessor
+     */
+    static Object get(PropertyAccessor<Object> accessor, Object target, String name) throws InvocationTargetException {
+        try {
+            return accessor.get(target, name);
+        } catch (Exception e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+}
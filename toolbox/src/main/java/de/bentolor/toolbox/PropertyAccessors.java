@@ -0,0 +1,280 @@
+package de.bentolor.toolbox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-class cache of property accessors used by the {@link TemplateFormatter}. For every class the public fields and methods are
+ * retrieved once; every property name resolved against it is remembered as a set of <code>MethodHandle</code>s for the public
+ * field, the bean getter and the plain no-arg method of that name. Names without any matching member are remembered as well.
+ * <p>
+ * The component accessors of records (Java 16+) are detected reflectively and serve as getter and plain method of their
+ * component without searching the methods.
+ * <p>
+ * The cache is attached to the classes via <code>ClassValue</code>, so it does not prevent class loaders from being unloaded.
+ */
+final class PropertyAccessors {
+
+    private static final ClassValue<PropertyAccessors> ACCESSORS = new ClassValue<PropertyAccessors>() {
+        @Override
+        protected PropertyAccessors computeValue(Class<?> type) {
+            return new PropertyAccessors(type);
+        }
+    };
+
+    private static final MethodType ACCESSOR_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    /**
+     * Cached for names without any matching member, so failing lookups cost a single map probe as well.
+     */
+    private static final Candidates NONE = new Candidates(null, null, null);
+
+    /**
+     * <code>Class.isRecord()</code>, <code>Class.getRecordComponents()</code>, <code>RecordComponent.getAccessor()</code> or
+     * <code>null</code> if the runtime doesn't support records.
+     */
+    private static final Method IS_RECORD;
+    private static final Method GET_RECORD_COMPONENTS;
+    private static final Method GET_COMPONENT_ACCESSOR;
+
+    static {
+        Method isRecord = null;
+        Method getRecordComponents = null;
+        Method getComponentAccessor = null;
+        try {
+            isRecord = Class.class.getMethod("isRecord");
+            getRecordComponents = Class.class.getMethod("getRecordComponents");
+            getComponentAccessor = Class.forName("java.lang.reflect.RecordComponent").getMethod("getAccessor");
+        } catch (ReflectiveOperationException e) {
+            // no records before Java 16
+            isRecord = null;
+        }
+        IS_RECORD = isRecord;
+        GET_RECORD_COMPONENTS = getRecordComponents;
+        GET_COMPONENT_ACCESSOR = getComponentAccessor;
+    }
+
+    private final Field[] fields;
+    private final Method[] methods;
+    /**
+     * Accessor methods by component name if the class is a record, otherwise empty.
+     */
+    private final Map<String, Method> recordComponents;
+    private final ConcurrentMap<String, Candidates> candidates = new ConcurrentHashMap<String, Candidates>();
+
+    private PropertyAccessors(Class<?> type) {
+        this.fields = type.getFields();
+        this.methods = type.getMethods();
+        this.recordComponents = recordComponents(type);
+    }
+
+    private static Map<String, Method> recordComponents(Class<?> type) {
+        if (PropertyAccessors.IS_RECORD == null) {
+            return Collections.emptyMap();
+        }
+        try {
+            if (!(Boolean) PropertyAccessors.IS_RECORD.invoke(type)) {
+                return Collections.emptyMap();
+            }
+            Map<String, Method> components = new HashMap<String, Method>();
+            for (Object component : (Object[]) PropertyAccessors.GET_RECORD_COMPONENTS.invoke(type)) {
+                Method accessor = (Method) PropertyAccessors.GET_COMPONENT_ACCESSOR.invoke(component);
+                components.put(accessor.getName(), accessor);
+            }
+            return components;
+        } catch (ReflectiveOperationException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * The accessor cache of the passed class.
+     */
+    static PropertyAccessors forClass(Class<?> type) {
+        return ACCESSORS.get(type);
+    }
+
+    /**
+     * Resolves a property against the passed object. Tries the public field, the bean getter (<code>getName()</code> or
+     * <code>isName()</code>) and the plain method <code>name()</code> in this order, skipping the disabled strategies.
+     *
+     * @return the property value or {@link TemplateFormatter#UNRESOLVED} if no enabled strategy matched
+     */
+    Object resolve(Object target, String name, boolean useFields, boolean useBeanValues, boolean useMethods)
+            throws IllegalAccessException, InvocationTargetException {
+        Accessor accessor = accessor(name, useFields, useBeanValues, useMethods);
+        return accessor != null ? accessor.get(target) : TemplateFormatter.UNRESOLVED;
+    }
+
+    /**
+     * The accessor the enabled strategies pick for the passed property name.
+     *
+     * @return the accessor or <code>null</code> if no enabled strategy matched
+     */
+    Accessor accessor(String name, boolean useFields, boolean useBeanValues, boolean useMethods) {
+        Candidates accessors = candidates.get(name);
+        if (accessors == null) {
+            accessors = lookup(name);
+            if (accessors.field == null && accessors.getter == null && accessors.method == null) {
+                accessors = PropertyAccessors.NONE;
+            }
+            Candidates known = candidates.putIfAbsent(name, accessors);
+            if (known != null) {
+                accessors = known;
+            }
+        }
+
+        if (useFields && accessors.field != null) {
+            return accessors.field;
+        }
+        if (useBeanValues && accessors.getter != null) {
+            return accessors.getter;
+        }
+        if (useMethods && accessors.method != null) {
+            return accessors.method;
+        }
+        return null;
+    }
+
+    private Candidates lookup(String name) {
+        final Method component = recordComponents.get(name);
+        if (component != null) {
+            final Accessor componentAccessor = new Accessor(component);
+            return new Candidates(null, componentAccessor, componentAccessor);
+        }
+
+        Accessor fieldAccessor = null;
+        for (Field field : fields) {
+            if (field.getName().equals(name)) {
+                fieldAccessor = new Accessor(field);
+                break;
+            }
+        }
+
+        final String baseName = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        final String getterName = "get" + baseName;
+        final String isName = "is" + baseName;
+        Accessor getterAccessor = null;
+        Accessor methodAccessor = null;
+        for (Method method : methods) {
+            // We need to get the method without return arguments
+            if (method.getParameterTypes().length != 0) {
+                continue;
+            }
+            final String methodName = method.getName();
+            if (getterAccessor == null && (methodName.equals(getterName) || methodName.equals(isName))) {
+                getterAccessor = new Accessor(method);
+            }
+            if (methodAccessor == null && methodName.equals(name)) {
+                methodAccessor = new Accessor(method);
+            }
+        }
+        return new Candidates(fieldAccessor, getterAccessor, methodAccessor);
+    }
+
+    /**
+     * The accessors found for one property name. Each of them may be <code>null</code>.
+     */
+    private static final class Candidates {
+        final Accessor field;
+        final Accessor getter;
+        final Accessor method;
+
+        Candidates(Accessor field, Accessor getter, Accessor method) {
+            this.field = field;
+            this.getter = getter;
+            this.method = method;
+        }
+    }
+
+    /**
+     * Reads a field or invokes a no-arg method via a <code>MethodHandle</code> typed <code>(Object)Object</code>. If the member
+     * is not accessible as handle (i.e. declared by a non-public class) plain reflection is used, which then reports the
+     * access problem just like before.
+     */
+    static final class Accessor {
+        private final MethodHandle handle;
+        private final MethodHandle exactHandle;
+        private final Field field;
+        private final Method method;
+        private final Class<?> valueType;
+
+        Accessor(Field field) {
+            MethodHandle fieldHandle;
+            try {
+                fieldHandle = MethodHandles.lookup().unreflectGetter(field);
+                if (Modifier.isStatic(field.getModifiers())) {
+                    fieldHandle = MethodHandles.dropArguments(fieldHandle, 0, Object.class);
+                }
+            } catch (IllegalAccessException e) {
+                fieldHandle = null;
+            }
+            this.exactHandle = fieldHandle;
+            this.handle = fieldHandle != null ? fieldHandle.asType(ACCESSOR_TYPE) : null;
+            this.field = field;
+            this.method = null;
+            this.valueType = field.getType();
+        }
+
+        Accessor(Method method) {
+            MethodHandle methodHandle;
+            try {
+                methodHandle = MethodHandles.lookup().unreflect(method);
+                if (Modifier.isStatic(method.getModifiers())) {
+                    methodHandle = MethodHandles.dropArguments(methodHandle, 0, Object.class);
+                }
+            } catch (IllegalAccessException e) {
+                methodHandle = null;
+            }
+            this.exactHandle = methodHandle;
+            this.handle = methodHandle != null ? methodHandle.asType(ACCESSOR_TYPE) : null;
+            this.field = null;
+            this.method = method;
+            this.valueType = method.getReturnType();
+        }
+
+        /**
+         * The handle typed <code>(Object)Object</code> or <code>null</code> if the member is only reachable via reflection.
+         */
+        MethodHandle handle() {
+            return handle;
+        }
+
+        /**
+         * The handle typed <code>(Owner)ValueType</code>, i.e. returning primitives unboxed, or <code>null</code> if the member
+         * is only reachable via reflection.
+         */
+        MethodHandle exactHandle() {
+            return exactHandle;
+        }
+
+        /**
+         * The declared type of the field or the return type of the method.
+         */
+        Class<?> valueType() {
+            return valueType;
+        }
+
+        @SuppressWarnings("OverlyBroadCatchBlock")
+        Object get(Object target) throws IllegalAccessException, InvocationTargetException {
+            if (handle == null) {
+                return field != null ? field.get(target) : method.invoke(target);
+            }
+            try {
+                return (Object) handle.invokeExact(target);
+            } catch (Throwable t) { // NOSONAR Same semantics as Method.invoke(): wrap everything thrown by the target
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+}
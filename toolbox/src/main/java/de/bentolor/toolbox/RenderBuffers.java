@@ -0,0 +1,54 @@
+package de.bentolor.toolbox;
+
+/**
+ * Per-thread <code>StringBuilder</code>s reused by {@link CompiledTemplate#render(java.util.Map)} if
+ * {@link TemplateFormatter#setReuseRenderBuffers(boolean) enabled}. Each thread keeps at most one buffer. A buffer is taken out
+ * while in use, so nested renders on the same thread (i.e. from a value formatter) just get a new one. Buffers grown beyond
+ * {@link #MAX_RETAINED_CAPACITY} are dropped after use to not pin large arrays to long-living threads.
+ */
+final class RenderBuffers {
+
+    /**
+     * Maximum capacity of a buffer kept for reuse ({@value} chars)
+     */
+    static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private static final ThreadLocal<RenderBuffers> BUFFERS = new ThreadLocal<RenderBuffers>() {
+        @Override
+        protected RenderBuffers initialValue() {
+            return new RenderBuffers();
+        }
+    };
+
+    private StringBuilder idle;
+
+    private RenderBuffers() {
+    }
+
+    /**
+     * Takes the buffer of the current thread or creates a new one.
+     *
+     * @param capacity the expected length of the rendered text
+     * @return an empty buffer
+     */
+    static StringBuilder acquire(int capacity) {
+        final RenderBuffers buffers = RenderBuffers.BUFFERS.get();
+        final StringBuilder buffer = buffers.idle;
+        if (buffer == null) {
+            return new StringBuilder(capacity);
+        }
+        buffers.idle = null;
+        buffer.ensureCapacity(capacity);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer taken by {@link #acquire(int)} for reuse by the current thread.
+     */
+    static void release(StringBuilder buffer) {
+        if (buffer.capacity() <= RenderBuffers.MAX_RETAINED_CAPACITY) {
+            buffer.setLength(0);
+            RenderBuffers.BUFFERS.get().idle = buffer;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package de.bentolor.toolbox;
+
+/**
+ * Receives timings and sizes of each render of a {@link TemplateFormatter}, i.e. to find the templates worth precompiling or
+ * caching. {@link TemplateMetrics} is a ready-made implementation aggregating them per template.
+ * <p>
+ * The listener is called on the rendering thread after the text has been written and must be thread-safe. Without a listener
+ * no time is taken at all.
+ *
+ * @see TemplateFormatter#setRenderListener(RenderListener)
+ */
+public interface RenderListener {
+
+    /**
+     * Called after a template has been rendered successfully.
+     *
+     * @param template          the rendered template
+     * @param renderNanos       the time taken by the whole render including scripts
+     * @param outputLength      the number of characters written or <code>-1</code> if unknown, i.e. when rendering into a
+     *                          <code>Writer</code>
+     * @param scriptNanos       the time taken evaluating script sections
+     * @param reflectiveLookups the number of property path segments resolved by looking up accessors on the runtime class.
+     *                          Segments resolved by a registered accessor, a map key or a path bound at compile time are not
+     *                          counted, typed paths falling back because the runtime type differs are
+     */
+    void rendered(CompiledTemplate template, long renderNanos, int outputLength, long scriptNanos, int reflectiveLookups);
+}
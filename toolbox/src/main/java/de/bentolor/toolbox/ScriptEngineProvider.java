@@ -0,0 +1,46 @@
+package de.bentolor.toolbox;
+
+import java.util.Map;
+
+/**
+ * Service provider interface for the script engine evaluating the script sections of a {@link TemplateFormatter} (the text
+ * between {@link TemplateFormatter#SCRIPT_START_TAG} and {@link TemplateFormatter#SCRIPT_END_TAG}). A script is prepared once
+ * per distinct script text and evaluated on every render with the named objects of the template as variables. Providers
+ * resolving properties of these objects themselves honour the property access settings of the evaluating formatter.
+ * <p>
+ * Available implementations are the {@link Jsr223ScriptEngineProvider} for any <code>javax.script</code> engine and the
+ * built-in {@link ExpressionScriptEngineProvider}. If no provider is set, the formatter evaluates scripts via
+ * {@link TemplateFormatter#createInterpreter()}, i.e. with BeanShell.
+ *
+ * @see TemplateFormatter#setScriptEngineProvider(ScriptEngineProvider)
+ */
+public interface ScriptEngineProvider {
+
+    /**
+     * Parses the passed script text. The formatter caches the result, so this method is called once per distinct script.
+     *
+     * @param script the script text
+     * @return the prepared script. Must be safe for concurrent use
+     * @throws Exception if the script can't be parsed
+     */
+    PreparedScript prepare(String script) throws Exception;
+
+    /**
+     * A script parsed by its {@link ScriptEngineProvider}.
+     */
+    interface PreparedScript {
+
+        /**
+         * Runs the script.
+         *
+         * @param variables the named objects passed to the template
+         * @param formatter the formatter rendering the template. Its {@link TemplateFormatter#isFormatFields() field},
+         *                  {@link TemplateFormatter#isFormatBeanValues() bean value} and
+         *                  {@link TemplateFormatter#isFormatMethods() method} access settings apply to the properties
+         *                  accessed by the script
+         * @return the script result, may be <code>null</code>
+         * @throws Exception if the evaluation fails
+         */
+        Object eval(Map<String, Object> variables, TemplateFormatter formatter) throws Exception;
+    }
+}
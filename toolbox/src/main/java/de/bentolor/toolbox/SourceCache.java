@@ -0,0 +1,371 @@
+package de.bentolor.toolbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe, size-bounded cache of the source files read by {@link ExceptionTools} to show the code around the line an
+ * exception has been thrown at. A burst of identical exceptions then reads each source file once instead of once per
+ * exception.
+ * <p>
+ * Files are keyed by their location, i.e. the search path plus resource name or the URL of a classpath resource. A cached
+ * file is read again if its modification time changed. The cache is bounded by the number of files and by its weight, the
+ * total size of the files held; the least recently used files are evicted first. Which of the search paths contains a
+ * file is remembered as well, so the search paths are not scanned on every lookup. Files not found are looked up again after
+ * {@link #RESCAN_INTERVAL_MILLIS}.
+ *
+ * @see ExceptionTools#setSourceCache(SourceCache)
+ */
+public final class SourceCache {
+
+    /**
+     * Default maximum number of cached files ({@value})
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+    /**
+     * Default maximum number of bytes held ({@value})
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 4 * 1024 * 1024;
+    /**
+     * Time after which a file not found in the search paths is looked up again ({@value} ms)
+     */
+    public static final long RESCAN_INTERVAL_MILLIS = 10000;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    /**
+     * Access ordered, guarded by itself
+     */
+    private final LinkedHashMap<String, Source> sources = new LinkedHashMap<String, Source>(16, 0.75f, true);
+    private long weight;
+    /**
+     * The file found for search paths plus source path
+     */
+    private final ConcurrentHashMap<String, Location> locations = new ConcurrentHashMap<String, Location>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+
+    /**
+     * Creates a cache with {@link #DEFAULT_MAX_ENTRIES} and {@link #DEFAULT_MAX_WEIGHT}.
+     */
+    public SourceCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param maxEntries maximum number of cached files
+     * @param maxWeight  maximum number of bytes held by all cached files together
+     */
+    public SourceCache(int maxEntries, long maxWeight) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("Cache bounds must be positive: " + maxEntries + " entries, weight " + maxWeight);
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Returns the lines of the source file found first in the search paths.
+     *
+     * @param codeSearchPaths the directories to search, may be <code>null</code>
+     * @param sourcePath      the path of the file relative to the search paths
+     * @return the lines or <code>null</code> if the file was not found or is not readable
+     */
+    SourceLines loadFromFiles(File[] codeSearchPaths, String sourcePath) {
+        if (codeSearchPaths == null) {
+            return null;
+        }
+        final String locationKey = locationKey(codeSearchPaths, sourcePath);
+        Location location = locations.get(locationKey);
+        if (location == null || location.file == null
+                && System.currentTimeMillis() - location.scanned > SourceCache.RESCAN_INTERVAL_MILLIS) {
+            location = scan(locationKey, codeSearchPaths, sourcePath);
+        }
+        if (location.file == null) {
+            return null;
+        }
+
+        long modified = location.file.lastModified();
+        if (modified == 0L) {
+            // moved or deleted meanwhile
+            location = scan(locationKey, codeSearchPaths, sourcePath);
+            if (location.file == null) {
+                return null;
+            }
+            modified = location.file.lastModified();
+        }
+        final String key = location.file.getPath();
+        final Source cached = lookup(key, modified);
+        if (cached != null) {
+            return cached.lines;
+        }
+        final long start = System.nanoTime();
+        SourceLines lines;
+        try {
+            lines = SourceLines.read(location.file);
+        } catch (IOException e) {
+            lines = null;
+        }
+        loadNanos.addAndGet(System.nanoTime() - start);
+        return store(key, lines, modified);
+    }
+
+    /**
+     * Returns the lines of a resource of the passed class loader. Resources in JAR files are never read again, resources in directories are read again if modified.
+     *
+     * @param loader   the class loader to ask for the resource
+     * @param resource the resource name
+     * @return the lines or <code>null</code> if the resource was not found or is not readable
+     */
+    SourceLines loadFromClasspath(ClassLoader loader, String resource) {
+        final URL url = loader.getResource(resource);
+        if (url == null) {
+            return null;
+        }
+        final String key = url.toExternalForm();
+        final long modified = lastModified(url);
+        final Source cached = lookup(key, modified);
+        if (cached != null) {
+            return cached.lines;
+        }
+        final long start = System.nanoTime();
+        SourceLines lines;
+        try {
+            final InputStream in = url.openStream();
+            try {
+                lines = SourceLines.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            lines = null;
+        }
+        loadNanos.addAndGet(System.nanoTime() - start);
+        return store(key, lines, modified);
+    }
+
+    /**
+     * Modification time of resources in directories, <code>0</code> for all others.
+     */
+    private static long lastModified(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return 0L;
+        }
+        try {
+            return new File(url.toURI()).lastModified();
+        } catch (URISyntaxException e) {
+            return 0L;
+        } catch (IllegalArgumentException e) {
+            return 0L;
+        }
+    }
+
+    private static String locationKey(File[] codeSearchPaths, String sourcePath) {
+        final StringBuilder key = new StringBuilder(sourcePath);
+        for (File path : codeSearchPaths) {
+            key.append(File.pathSeparatorChar).append(path.getPath());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Looks for the file in the search paths and remembers the result.
+     */
+    private Location scan(String locationKey, File[] codeSearchPaths, String sourcePath) {
+        File found = null;
+        for (File codeSearchPath : codeSearchPaths) {
+            final File candidate = new File(codeSearchPath, sourcePath);
+            if (candidate.isFile()) {
+                found = candidate;
+                break;
+            }
+        }
+        final Location location = new Location(found, System.currentTimeMillis());
+        if (locations.size() >= 4 * maxEntries) {
+            // bound the memo of (mostly negative) lookups
+            locations.clear();
+        }
+        locations.put(locationKey, location);
+        return location;
+    }
+
+    /**
+     * Returns the cached, unmodified source or <code>null</code>.
+     */
+    private Source lookup(String key, long modified) {
+        final Source cached;
+        synchronized (sources) {
+            cached = sources.get(key);
+        }
+        if (cached != null && cached.lastModified == modified) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        if (cached != null) {
+            invalidations.incrementAndGet();
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the loaded lines if they fit.
+     *
+     * @return the lines
+     */
+    private SourceLines store(String key, SourceLines lines, long modified) {
+        if (lines == null) {
+            synchronized (sources) {
+                final Source previous = sources.remove(key);
+                if (previous != null) {
+                    weight -= previous.weight;
+                }
+            }
+            return null;
+        }
+        final Source source = new Source(lines, modified);
+        synchronized (sources) {
+            final Source previous = sources.remove(key);
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            if (source.weight <= maxWeight) {
+                sources.put(key, source);
+                weight += source.weight;
+                evict();
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Evicts the least recently used entries until both bounds are met. Caller must hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Source>> eldest = sources.entrySet().iterator();
+        while ((sources.size() > maxEntries || weight > maxWeight) && eldest.hasNext()) {
+            weight -= eldest.next().getValue().weight;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all cached files and remembered locations. The statistics are kept.
+     */
+    public void clear() {
+        synchronized (sources) {
+            sources.clear();
+            weight = 0;
+        }
+        locations.clear();
+    }
+
+    /**
+     * Number of currently cached files.
+     */
+    public int size() {
+        synchronized (sources) {
+            return sources.size();
+        }
+    }
+
+    /**
+     * Total size of the currently cached files in bytes.
+     */
+    public long getWeight() {
+        synchronized (sources) {
+            return weight;
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Number of lookups served from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups which required to read the file.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Number of cached files read again because they have been modified.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * Number of files evicted to meet the cache bounds.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Total time spent reading files on cache misses in nanoseconds.
+     */
+    public long getLoadTimeNanos() {
+        return loadNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SourceCache[size=" + size() + ", weight=" + getWeight() + ", hits=" + getHitCount() + ", misses="
+                + getMissCount() + ", invalidations=" + getInvalidationCount() + ", evictions=" + getEvictionCount()
+                + ", loadTimeNanos=" + getLoadTimeNanos() + ']';
+    }
+
+    /**
+     * The lines of a file and its modification time when read.
+     */
+    private static final class Source {
+        final SourceLines lines;
+        final long lastModified;
+        final long weight;
+
+        Source(SourceLines lines, long lastModified) {
+            this.lines = lines;
+            this.lastModified = lastModified;
+            this.weight = lines.size();
+        }
+    }
+
+    /**
+     * The file found in the search paths, <code>null</code> if none.
+     */
+    private static final class Location {
+        final File file;
+        final long scanned;
+
+        Location(File file, long scanned) {
+            this.file = file;
+            this.scanned = scanned;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package de.bentolor.toolbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The UTF-8 encoded content of a source file with an index of its line starts. The content is kept as bytes; only the lines
+ * asked for are decoded into <code>String</code>s. Lines end with <code>\n</code>, <code>\r\n</code> or <code>\r</code> like
+ * for <code>BufferedReader.readLine()</code>.
+ * <p>
+ * Instances are immutable.
+ */
+final class SourceLines {
+
+    private final byte[] content;
+    /**
+     * Offset of the first byte of each line plus the content length as last element
+     */
+    private final int[] lineStarts;
+
+    private SourceLines(byte[] content) {
+        this.content = content;
+        this.lineStarts = index(content);
+    }
+
+    /**
+     * Reads the whole file with a single channel read.
+     */
+    static SourceLines read(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read until full or the file got shorter meanwhile
+            }
+            return new SourceLines(buffer.position() == buffer.capacity() ? buffer.array()
+                    : Arrays.copyOf(buffer.array(), buffer.position()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the stream up to its end. The stream is not closed.
+     */
+    static SourceLines read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return new SourceLines(out.toByteArray());
+    }
+
+    private static int[] index(byte[] content) {
+        int[] starts = new int[64];
+        int count = 0;
+        int i = 0;
+        while (i < content.length) {
+            if (count == starts.length - 1) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            starts[count++] = i;
+            while (i < content.length && content[i] != '\n' && content[i] != '\r') {
+                i++;
+            }
+            if (i < content.length) {
+                // skip the line terminator
+                i += content[i] == '\r' && i + 1 < content.length && content[i + 1] == '\n' ? 2 : 1;
+            }
+        }
+        starts[count] = content.length;
+        return Arrays.copyOf(starts, count + 1);
+    }
+
+    /**
+     * Number of lines.
+     */
+    int lineCount() {
+        return lineStarts.length - 1;
+    }
+
+    /**
+     * Decodes one line without its line terminator.
+     *
+     * @param index the zero based line number
+     */
+    String line(int index) {
+        final int start = lineStarts[index];
+        int end = lineStarts[index + 1];
+        if (end > start && content[end - 1] == '\n') {
+            end--;
+        }
+        if (end > start && content[end - 1] == '\r') {
+            end--;
+        }
+        return new String(content, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Size of the content in bytes.
+     */
+    int size() {
+        return content.length;
+    }
+}
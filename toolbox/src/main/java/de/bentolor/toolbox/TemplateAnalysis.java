@@ -0,0 +1,141 @@
+package de.bentolor.toolbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Findings of parsing a template into a {@link CompiledTemplate}, available via {@link CompiledTemplate#getAnalysis()}. Reports
+ * the problems which otherwise only show up as untouched text in the rendered output:
+ * <ul>
+ * <li>unclosed <code>${</code> and script sections without end tag,</li>
+ * <li>tokens which can't be resolved against the declared parameter types if the template has been compiled with
+ * {@link TemplateFormatter#compile(String, java.util.Map) a signature}.</li>
+ * </ul>
+ */
+public final class TemplateAnalysis {
+
+    private final List<String> tokens;
+    private final List<String> unresolvedTokens;
+    private final List<Integer> unclosedTokenPositions;
+    private final List<String> scriptBlocks;
+    private final int unclosedScriptPosition;
+    private final int literalLength;
+
+    private TemplateAnalysis(Collector collector, int literalLength) {
+        this.tokens = Collections.unmodifiableList(collector.tokens);
+        this.unresolvedTokens = Collections.unmodifiableList(collector.unresolvedTokens);
+        this.unclosedTokenPositions = Collections.unmodifiableList(collector.unclosedTokenPositions);
+        this.scriptBlocks = Collections.unmodifiableList(collector.scriptBlocks);
+        this.unclosedScriptPosition = collector.unclosedScriptPosition;
+        this.literalLength = literalLength;
+    }
+
+    /**
+     * All property tokens of the template in order of appearance, i.e. <code>${order.id}</code>.
+     */
+    public List<String> getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Tokens referring to an object missing in the signature or to a property not available on the declared type. Always empty
+     * if the template has been compiled without signature.
+     */
+    public List<String> getUnresolvedTokens() {
+        return unresolvedTokens;
+    }
+
+    /**
+     * Positions of <code>${</code> without matching <code>}</code>. These are rendered as plain text.
+     */
+    public List<Integer> getUnclosedTokenPositions() {
+        return unclosedTokenPositions;
+    }
+
+    /**
+     * The sources of all script sections, without their tags.
+     */
+    public List<String> getScriptBlocks() {
+        return scriptBlocks;
+    }
+
+    /**
+     * Position of a {@link TemplateFormatter#SCRIPT_START_TAG} without end tag, <code>-1</code> if there is none. The text
+     * from there on is not run as script.
+     */
+    public int getUnclosedScriptPosition() {
+        return unclosedScriptPosition;
+    }
+
+    /**
+     * The number of characters rendered as they are, not counting script sections.
+     */
+    public int getLiteralLength() {
+        return literalLength;
+    }
+
+    /**
+     * Has no problem been found?
+     */
+    public boolean isValid() {
+        return unresolvedTokens.isEmpty() && unclosedTokenPositions.isEmpty() && unclosedScriptPosition < 0;
+    }
+
+    /**
+     * Human readable descriptions of all problems found.
+     */
+    public List<String> getProblems() {
+        List<String> problems = new ArrayList<String>();
+        for (Integer position : unclosedTokenPositions) {
+            problems.add("Unclosed " + TemplateFormatter.PROPERTY_START_TAG + " at position " + position);
+        }
+        if (unclosedScriptPosition >= 0) {
+            problems.add("Unclosed " + TemplateFormatter.SCRIPT_START_TAG + " at position " + unclosedScriptPosition);
+        }
+        for (String token : unresolvedTokens) {
+            problems.add("Unresolved token " + token);
+        }
+        return problems;
+    }
+
+    @Override
+    public String toString() {
+        return "TemplateAnalysis[tokens=" + tokens.size() + ", scriptBlocks=" + scriptBlocks.size() + ", literalLength="
+                + literalLength + ", problems=" + getProblems() + ']';
+    }
+
+    /**
+     * Collects the findings while parsing.
+     */
+    static final class Collector {
+        private final List<String> tokens = new ArrayList<String>();
+        private final List<String> unresolvedTokens = new ArrayList<String>();
+        private final List<Integer> unclosedTokenPositions = new ArrayList<Integer>();
+        private final List<String> scriptBlocks = new ArrayList<String>();
+        private int unclosedScriptPosition = -1;
+
+        void token(String source, boolean resolvable) {
+            tokens.add(source);
+            if (!resolvable) {
+                unresolvedTokens.add(source);
+            }
+        }
+
+        void unclosedToken(int position) {
+            unclosedTokenPositions.add(position);
+        }
+
+        void scriptBlock(String source) {
+            scriptBlocks.add(source);
+        }
+
+        void unclosedScript(int position) {
+            unclosedScriptPosition = position;
+        }
+
+        TemplateAnalysis build(int literalLength) {
+            return new TemplateAnalysis(this, literalLength);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package de.bentolor.toolbox;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe, size-bounded cache of {@link CompiledTemplate}s used by {@link TemplateFormatter#formatCompiled(String, Map)}.
+ * The cache is bounded by the number of entries and by its weight, i.e. the total number of template characters held. If any
+ * bound is exceeded, the least recently used templates are evicted. Templates heavier than the total weight bound are not
+ * cached at all.
+ * <p>
+ * Compiled templates are bound to their formatter, so a cache should only be used by one formatter. Hit, miss and eviction
+ * counts as well as the time spent compiling are recorded for monitoring.
+ */
+public final class TemplateCache {
+
+    /**
+     * Default maximum number of cached templates ({@value})
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    /**
+     * Default maximum number of template characters held ({@value})
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 256 * 1024;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    /**
+     * Access ordered, guarded by itself
+     */
+    private final LinkedHashMap<String, CompiledTemplate> templates =
+            new LinkedHashMap<String, CompiledTemplate>(16, 0.75f, true);
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong compileNanos = new AtomicLong();
+
+    /**
+     * Creates a cache with {@link #DEFAULT_MAX_ENTRIES} and {@link #DEFAULT_MAX_WEIGHT}.
+     */
+    public TemplateCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param maxEntries maximum number of cached templates
+     * @param maxWeight  maximum number of template characters held by all cached templates together
+     */
+    public TemplateCache(int maxEntries, long maxWeight) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("Cache bounds must be positive: " + maxEntries + " entries, weight " + maxWeight);
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Returns the cached compiled form of the passed template or compiles and caches it using the passed formatter.
+     *
+     * @param formatter    the formatter to compile with
+     * @param formatString the template
+     * @return the compiled template, never <code>null</code>
+     */
+    public CompiledTemplate get(TemplateFormatter formatter, String formatString) {
+        CompiledTemplate compiled;
+        synchronized (templates) {
+            compiled = templates.get(formatString);
+        }
+        if (compiled != null && compiled.getFormatter() == formatter) {
+            hits.incrementAndGet();
+            return compiled;
+        }
+
+        misses.incrementAndGet();
+        final long start = System.nanoTime();
+        compiled = formatter.compile(formatString);
+        compileNanos.addAndGet(System.nanoTime() - start);
+
+        final long templateWeight = formatString.length();
+        if (templateWeight <= maxWeight) {
+            synchronized (templates) {
+                CompiledTemplate previous = templates.put(formatString, compiled);
+                if (previous != null) {
+                    weight -= templateWeight;
+                }
+                weight += templateWeight;
+                evict();
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Evicts the least recently used entries until both bounds are met. Caller must hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, CompiledTemplate>> eldest = templates.entrySet().iterator();
+        while ((templates.size() > maxEntries || weight > maxWeight) && eldest.hasNext()) {
+            weight -= eldest.next().getKey().length();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all cached templates. The statistics are kept.
+     */
+    public void clear() {
+        synchronized (templates) {
+            templates.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Number of currently cached templates.
+     */
+    public int size() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+    /**
+     * Total number of characters of the currently cached templates.
+     */
+    public long getWeight() {
+        synchronized (templates) {
+            return weight;
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Number of lookups served from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups which required to compile the template.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Number of templates evicted to meet the cache bounds.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Total time spent compiling templates on cache misses in nanoseconds.
+     */
+    public long getCompileTimeNanos() {
+        return compileNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TemplateCache[size=" + size() + ", weight=" + getWeight() + ", hits=" + getHitCount() + ", misses="
+                + getMissCount() + ", evictions=" + getEvictionCount() + ", compileTimeNanos=" + getCompileTimeNanos() + ']';
+    }
+}
@@ -3,13 +3,22 @@ package de.bentolor.toolbox;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Formats text message templates with values derived out of a set of named objects. object properties and methods and beanshell
@@ -35,6 +44,10 @@ import java.util.Map;
  *                                         "  return 'lang'; else  return 'kurz';" + "&lt;/bsh&gt;", map));
  * }
  * </pre>
+ * <p>
+ * Formatters created by {@link #builder()} are immutable and may be shared between threads. The mutable
+ * <code>DEFAULT_*</code> fields are only read when a formatter or builder is created, so changing them affects neither
+ * existing formatters nor the formatters of existing builders.
  */
 public class TemplateFormatter {
     /**
@@ -65,6 +78,10 @@ public class TemplateFormatter {
      * Apache jakarta commons logger
      */
     private static final Log LOG = LogFactory.getLog(TemplateFormatter.class);
+    /**
+     * Marker returned by {@link #resolveSegment} if no access strategy matched a property name.
+     */
+    static final Object UNRESOLVED = new Object();
     /**
      * Default String representation for <code>null</code>
      */
@@ -77,38 +94,168 @@ public class TemplateFormatter {
      * Field access possible?
      */
     public static Boolean DEFAULT_FIELDS_ENABLED = true; // Originally a config facility was used here
+    /**
+     * Default number of idle script interpreters kept for reuse ({@value})
+     */
+    public static final int DEFAULT_INTERPRETER_POOL_SIZE = 4;
+    /**
+     * Maximum number of scripts kept prepared by the {@link #setScriptEngineProvider script engine provider} ({@value})
+     */
+    public static final int MAX_PREPARED_SCRIPTS = 256;
+    /**
+     * Default executor of {@link #formatAsync(String, Map)}
+     */
+    private static final Executor ASYNC_EXECUTOR = TemplateFormatter.createAsyncExecutor();
     /**
      * @see #setFieldAccessEnabled
      * @see #isFormatFields
      */
-    private boolean formatFields = TemplateFormatter.DEFAULT_FIELDS_ENABLED;
+    private volatile boolean formatFields = TemplateFormatter.DEFAULT_FIELDS_ENABLED;
 
     /**
      * @see #setMethodAccessEnabled
      * @see #isFormatMethods
      */
-    private boolean formatMethods = TemplateFormatter.DEFAULT_METHODS_ENABLED;
+    private volatile boolean formatMethods = TemplateFormatter.DEFAULT_METHODS_ENABLED;
 
     /**
      * @see #setScriptingEnabled
      * @see #isFormatScripts
      */
-    private boolean formatScripts = TemplateFormatter.DEFAULT_BSH_ENABLED;
+    private volatile boolean formatScripts = TemplateFormatter.DEFAULT_BSH_ENABLED;
 
     /**
      * @see #setFormatBeanValues(boolean)
      */
-    private boolean formatBeanValues = TemplateFormatter.DEFAULT_BEANACCESS_ENABLED;
+    private volatile boolean formatBeanValues = TemplateFormatter.DEFAULT_BEANACCESS_ENABLED;
 
     /**
      * String representation of <code>null</code>
      */
-    private String nullString = TemplateFormatter.DEFAULT_NULL_STRING;
+    private volatile String nullString = TemplateFormatter.DEFAULT_NULL_STRING;
+
+    /**
+     * @see #setTemplateCache(TemplateCache)
+     */
+    private volatile TemplateCache templateCache = new TemplateCache();
+
+    /**
+     * @see #setInterpreterPoolSize(int)
+     */
+    private volatile InterpreterPool interpreterPool = new InterpreterPool(this, TemplateFormatter.DEFAULT_INTERPRETER_POOL_SIZE);
+
+    /**
+     * The scripts prepared by the current script engine provider, <code>null</code> if no provider is set.
+     *
+     * @see #setScriptEngineProvider(ScriptEngineProvider)
+     */
+    private volatile PreparedScripts preparedScripts;
+
+    /**
+     * @see #registerPropertyAccessor(Class, PropertyAccessor)
+     */
+    private volatile PropertyAccessorRegistry propertyAccessors = PropertyAccessorRegistry.EMPTY;
+
+    /**
+     * @see #setUnresolvedPathPolicy(UnresolvedPathPolicy)
+     */
+    private volatile UnresolvedPathPolicy unresolvedPathPolicy = UnresolvedPathPolicy.KEEP_TOKEN;
+
+    /**
+     * @see #setReuseRenderBuffers(boolean)
+     */
+    private volatile boolean reuseRenderBuffers;
+
+    /**
+     * @see #setValueFormatter(ValueFormatter)
+     */
+    private volatile ValueFormatter valueFormatter = ValueFormatters.defaults();
+
+    /**
+     * Receives the timings of all renders, <code>null</code> if disabled
+     */
+    private volatile RenderListener renderListener;
+
+    /**
+     * Settings of formatters created by a {@link Builder} can't be changed.
+     */
+    private final boolean frozen;
+
+    /**
+     * A subclass customizes {@link #valueToString(String, Object)}, which then takes precedence over the value formatter.
+     */
+    private final boolean customValueToString;
 
     /**
      * Creates a new <code>TextFormat</code> instance.
      */
     public TemplateFormatter() {
+        frozen = false;
+        customValueToString = overridesValueToString(getClass());
+    }
+
+    /**
+     * Creates an immutable formatter with the settings of the passed builder. Subclasses may use this constructor to be
+     * immutable as well.
+     *
+     * @see #builder()
+     */
+    protected TemplateFormatter(Builder builder) {
+        formatFields = builder.formatFields;
+        formatMethods = builder.formatMethods;
+        formatScripts = builder.formatScripts;
+        formatBeanValues = builder.formatBeanValues;
+        nullString = builder.nullString;
+        templateCache = builder.defaultTemplateCache ? new TemplateCache() : builder.templateCache;
+        interpreterPool = new InterpreterPool(this, builder.interpreterPoolSize);
+        preparedScripts = builder.scriptEngineProvider != null ? new PreparedScripts(builder.scriptEngineProvider) : null;
+        valueFormatter = builder.valueFormatter;
+        reuseRenderBuffers = builder.reuseRenderBuffers;
+        unresolvedPathPolicy = builder.unresolvedPathPolicy;
+        propertyAccessors = builder.propertyAccessors;
+        renderListener = builder.renderListener;
+        frozen = true;
+        customValueToString = overridesValueToString(getClass());
+    }
+
+    private static boolean overridesValueToString(Class<?> type) {
+        for (Class<?> cls = type; cls != TemplateFormatter.class; cls = cls.getSuperclass()) {
+            try {
+                cls.getDeclaredMethod("valueToString", String.class, Object.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not declared here
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a builder for an immutable formatter. The builder starts with the current <code>DEFAULT_*</code> values; later
+     * changes of these defaults don't affect formatters built.
+     * <p>
+     * A built formatter can be shared by any number of threads, so its caches of compiled templates, property accessors and
+     * script interpreters are reused by all of them:
+     * <pre>
+     * private static final TemplateFormatter FORMATTER = TemplateFormatter.builder().nullString("").build();
+     * </pre>
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Is this an immutable formatter created by a {@link Builder}? The setters of such a formatter throw an
+     * <code>IllegalStateException</code>.
+     */
+    public final boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("The settings of a TemplateFormatter created by a Builder can't be changed");
+        }
     }
 
     /**
@@ -129,6 +276,7 @@ public class TemplateFormatter {
      * @see #DEFAULT_NULL_STRING
      */
     public final void setNullString(String nullString) {
+        checkNotFrozen();
         this.nullString = nullString;
     }
 
@@ -138,6 +286,7 @@ public class TemplateFormatter {
      * @param enabled <code>true</code> if enabled
      */
     public final void setFieldAccessEnabled(boolean enabled) {
+        checkNotFrozen();
         formatFields = enabled;
     }
 
@@ -151,6 +300,7 @@ public class TemplateFormatter {
      * @param enabled <code>true</code> if enabled
      */
     public final void setMethodAccessEnabled(boolean enabled) {
+        checkNotFrozen();
         formatMethods = enabled;
     }
 
@@ -166,6 +316,7 @@ public class TemplateFormatter {
      * Toggle access for bean property values.
      */
     public void setFormatBeanValues(final boolean formatBeanValues) {
+        checkNotFrozen();
         this.formatBeanValues = formatBeanValues;
     }
 
@@ -175,6 +326,7 @@ public class TemplateFormatter {
      * @param enabled true if scripting is enabled
      */
     public final void setScriptingEnabled(boolean enabled) {
+        checkNotFrozen();
         formatScripts = enabled;
     }
 
@@ -183,9 +335,222 @@ public class TemplateFormatter {
         return formatScripts;
     }
 
+    /**
+     * The number of idle script interpreters kept for reuse.
+     */
+    public final int getInterpreterPoolSize() {
+        return interpreterPool.getMaxIdle();
+    }
+
+    /**
+     * Sets the number of idle script interpreters kept for reuse. Interpreters are taken from the pool for each format call
+     * and returned {@link #resetInterpreter(Object) reset}. Default is {@link #DEFAULT_INTERPRETER_POOL_SIZE}.
+     * <p>
+     * Interpreters implementing <code>javax.script.Compilable</code> compile each script once per pool if their engine factory
+     * declares a <code>THREADING</code> model, otherwise once per pooled interpreter. BeanShell parses the script on every
+     * evaluation, whatever the pool size.
+     *
+     * @param size maximum number of idle interpreters, <code>0</code> to create a new interpreter for every call
+     */
+    public final void setInterpreterPoolSize(int size) {
+        checkNotFrozen();
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative pool size: " + size);
+        }
+        interpreterPool = new InterpreterPool(this, size);
+    }
+
+    /**
+     * The pool of script interpreters.
+     */
+    final InterpreterPool getInterpreterPool() {
+        return interpreterPool;
+    }
+
+    /**
+     * The provider evaluating script sections.
+     *
+     * @return the provider or <code>null</code> if scripts are evaluated by the {@link #createInterpreter() interpreter}
+     */
+    public final ScriptEngineProvider getScriptEngineProvider() {
+        final PreparedScripts scripts = preparedScripts;
+        return scripts != null ? scripts.provider : null;
+    }
+
+    /**
+     * Sets the provider evaluating script sections, i.e. a {@link Jsr223ScriptEngineProvider} or the built-in
+     * {@link ExpressionScriptEngineProvider}. Each distinct script is prepared once and the prepared form is reused by later
+     * renders. Scripting still has to be enabled via {@link #setScriptingEnabled(boolean)}.
+     *
+     * @param provider the provider or <code>null</code> to evaluate scripts by the {@link #createInterpreter() interpreter}
+     */
+    public final void setScriptEngineProvider(ScriptEngineProvider provider) {
+        checkNotFrozen();
+        preparedScripts = provider != null ? new PreparedScripts(provider) : null;
+    }
+
+    /**
+     * Registers a hand-written accessor for the properties of the passed type and its subtypes. Registered accessors are
+     * asked before any other strategy. If several accessors match a class, the one registered for the class itself wins,
+     * otherwise the first one registered.
+     *
+     * @param type     the type handled
+     * @param accessor the accessor
+     */
+    public final <T> void registerPropertyAccessor(Class<T> type, PropertyAccessor<? super T> accessor) {
+        checkNotFrozen();
+        if (type == null || accessor == null) {
+            throw new IllegalArgumentException("Type and accessor are required");
+        }
+        synchronized (this) {
+            propertyAccessors = propertyAccessors.with(type, accessor);
+        }
+    }
+
+    /**
+     * Is the passed class resolved by reflection only, i.e. it is no <code>Map</code> and has no registered accessor?
+     */
+    final boolean isResolvedReflectively(Class<?> type) {
+        return !Map.class.isAssignableFrom(type) && propertyAccessors.forClass(type) == null;
+    }
+
+    public final UnresolvedPathPolicy getUnresolvedPathPolicy() {
+        return unresolvedPathPolicy;
+    }
+
+    /**
+     * Sets what compiled templates render for tokens which can't be resolved, i.e. because
+     * the named object is missing or has no property of that name. A <code>null</code> value within a path is not unresolved:
+     * the token renders empty then. Default is {@link UnresolvedPathPolicy#KEEP_TOKEN}.
+     * <p>
+     * Failed lookups are cached per class, so an unresolvable token costs a single map lookup on each render.
+     *
+     * @param policy the policy, not <code>null</code>
+     */
+    public final void setUnresolvedPathPolicy(UnresolvedPathPolicy policy) {
+        checkNotFrozen();
+        if (policy == null) {
+            throw new IllegalArgumentException("No policy passed");
+        }
+        unresolvedPathPolicy = policy;
+    }
+
+    public final boolean isReuseRenderBuffers() {
+        return reuseRenderBuffers;
+    }
+
+    /**
+     * Toggle reuse of render buffers. If enabled, {@link #formatCompiled(String, Map)} renders into a <code>StringBuilder</code>
+     * kept per thread and only copies the final text into the result <code>String</code>. This avoids growing a new buffer for
+     * every call. Buffers larger than 16K chars are not kept. Default is <code>false</code>.
+     *
+     * @param enabled <code>true</code> to reuse the buffers
+     */
+    public final void setReuseRenderBuffers(boolean enabled) {
+        checkNotFrozen();
+        reuseRenderBuffers = enabled;
+    }
+
+    /**
+     * The formatter writing the token values.
+     */
+    public final ValueFormatter getValueFormatter() {
+        return valueFormatter;
+    }
+
+    /**
+     * Sets the formatter writing the token values. Default is {@link ValueFormatters#defaults()}, which yields the same text as
+     * <code>toString()</code> of the values. If a subclass overrides {@link #valueToString(String, Object)}, that method is
+     * used instead.
+     *
+     * @param valueFormatter the formatter, not <code>null</code>
+     */
+    public final void setValueFormatter(ValueFormatter valueFormatter) {
+        checkNotFrozen();
+        if (valueFormatter == null) {
+            throw new IllegalArgumentException("No value formatter passed");
+        }
+        this.valueFormatter = valueFormatter;
+    }
+
+    /**
+     * The listener receiving the timings of all renders.
+     *
+     * @return the listener or <code>null</code> if disabled
+     */
+    public final RenderListener getRenderListener() {
+        return renderListener;
+    }
 
+    /**
+     * Sets a listener receiving the render time, output length, script time and number of reflective property lookups of each
+     * render of compiled templates and of each {@link #format(String, Map)} call, i.e. a {@link TemplateMetrics}. Calls of
+     * <code>format</code> with the template cache disabled are not reported. Default is <code>null</code>, which skips taking
+     * the time completely.
+     *
+     * @param renderListener the listener or <code>null</code> to disable
+     */
+    public final void setRenderListener(RenderListener renderListener) {
+        checkNotFrozen();
+        this.renderListener = renderListener;
+    }
+
+    /**
+     * Are token values appended by the {@link ValueFormatters#defaults() default value formatter}? Typed templates may then
+     * append primitive values directly.
+     */
+    final boolean isDefaultValueFormatting() {
+        return !customValueToString && valueFormatter == ValueFormatters.defaults();
+    }
+
+    /**
+     * Appends the text of a token value like {@link #valueToString(String, Object)} does.
+     */
+    final void appendValue(StringBuilder target, String fulltoken, Object tokenValue) {
+        if (customValueToString) {
+            target.append(valueToString(fulltoken, tokenValue));
+        } else if (tokenValue == null) {
+            target.append(nullString);
+        } else {
+            valueFormatter.appendTo(target, tokenValue);
+        }
+    }
+
+    /**
+     * The cache of compiled templates used by {@link #format(String, Map)} and {@link #formatCompiled(String, Map)}.
+     *
+     * @return the cache or <code>null</code> if caching is disabled
+     */
+    public final TemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    /**
+     * Sets the cache of compiled templates used by {@link #format(String, Map)} and {@link #formatCompiled(String, Map)}. By
+     * default each formatter uses its own {@link TemplateCache} with default bounds. A cache must not be shared with other
+     * formatters.
+     *
+     * @param templateCache the cache to use or <code>null</code> to parse templates on every call. <code>format</code> then
+     *                      replaces the tokens of the format string directly
+     */
+    public final void setTemplateCache(TemplateCache templateCache) {
+        checkNotFrozen();
+        this.templateCache = templateCache;
+    }
+
+
+    public final String formatProperties(String formatString, Map<String, Object> parameters) {
+        return formatProperties(formatString, parameters, null);
+    }
+
+    /**
+     * Replaces the tokens like {@link #formatProperties(String, Map)} and counts the reflective resolutions.
+     *
+     * @param lookups counts the property names resolved reflectively. May be <code>null</code>
+     */
     @SuppressWarnings({"OverlyLongMethod", "OverlyNestedMethod"})
-    public final String formatProperties(String formatString, Map<String, Object> parameters) { // NOSONAR [bschmid] I know -- its long.
+    final String formatProperties(String formatString, Map<String, Object> parameters, // NOSONAR [bschmid] I know -- its long.
+                                  TypedPropertyPath.ReflectiveLookups lookups) {
 
         if (parameters == null) {
             parameters = Collections.emptyMap();
@@ -227,61 +592,13 @@ public class TemplateFormatter {
 
                             tokenNameIdx = nextSubTokenIdx + 1;
                             if (replacement != null) {
-                                final Class<?> objectClass = replacement.getClass();
-                                final Field[] fieldList = objectClass.getFields();
-                                final Method[] methodList = objectClass.getMethods();
-
-                                // search for fitting fields
-                                if (formatFields) { // NOSONAR [bschmid] Deeply nested ifs.
-                                    Field field = null;
-                                    for (Field fieldIter : fieldList) {
-                                        if (fieldIter.getName().equals(tokenName)) {
-                                            field = fieldIter;
-                                            break;
-                                        }
-                                    }
-                                    if (field != null) {
-                                        replacement = field.get(replacement);
-                                        continue;
-                                    }
-                                }
-
-                                if (formatBeanValues) {// NOSONAR [bschmid] Deeply nested ifs.
-                                    Method method = null;
-                                    final String baseName = (Character.toUpperCase(tokenName.charAt(0))) + tokenName.substring(1);
-                                    final String getterName = "get" + baseName;
-                                    final String isName = "is" + baseName;
-                                    for (Method method1 : methodList) {
-                                        // We need to get the method without return arguments
-                                        final String methodname = method1.getName();
-                                        if ((methodname.equals(getterName) || methodname.equals(isName))
-                                                && method1.getParameterTypes().length == 0) {
-                                            method = method1;
-                                            break;
-                                        }
-                                    }
-                                    if (method != null) {
-                                        replacement = method.invoke(replacement);
-                                        continue;
-                                    }
+                                final Object resolved = resolveSegment(replacement, tokenName, lookups);
+                                if (resolved != TemplateFormatter.UNRESOLVED) {
+                                    replacement = resolved;
+                                } else {
+                                    replacementValid = false; // no replacement strategy worked.
+                                    break;
                                 }
-
-                                if (formatMethods) {// NOSONAR [bschmid] Deeply nested ifs.
-                                    Method method = null;
-                                    for (Method method1 : methodList) {
-                                        // We need to get the method without return arguments
-                                        if (method1.getName().equals(tokenName) && method1.getParameterTypes().length == 0) {
-                                            method = method1;
-                                            break;
-                                        }
-                                    }
-                                    if (method != null) {
-                                        replacement = method.invoke(replacement);
-                                        continue;
-                                    }
-                                }
-
-                                replacementValid = false; // no replacement strategy worked.
                             }
                         }
                         if (replacement != null && replacementValid) {
@@ -301,48 +618,171 @@ public class TemplateFormatter {
                 }
             }
         } catch (IllegalAccessException e) {
-            if (TemplateFormatter.LOG.isTraceEnabled()) {
-                TemplateFormatter.LOG.trace("Exception during TemplateFormatter: " + e + ". Cause is: ", e.getCause());
-            } else if (TemplateFormatter.LOG.isDebugEnabled()) {
-                TemplateFormatter.LOG.debug("Exception during TemplateFormatter: " + e + ". Cause is: " + e.getCause());
-            }
+            TemplateFormatter.logPropertyException(e);
         } catch (InvocationTargetException e) {
-            if (TemplateFormatter.LOG.isTraceEnabled()) {
-                TemplateFormatter.LOG.trace("Exception during TemplateFormatter: " + e + ". Cause is: ", e.getCause());
-            } else if (TemplateFormatter.LOG.isDebugEnabled()) {
-                TemplateFormatter.LOG.debug("Exception during TemplateFormatter: " + e + ". Cause is: " + e.getCause());
-            }
+            TemplateFormatter.logPropertyException(e);
         }
 
         return formatString;
     }
 
+    /**
+     * Parses the passed format string once into a reusable {@link CompiledTemplate}. Rendering the compiled template avoids
+     * rescanning the template and building intermediate strings per token. Its result equals the one of
+     * {@link #formatCompiled(String, Map)}, see there for the differences to {@link #format(String, Map)}.
+     * The compiled template stays bound to this formatter and honours its current settings.
+     *
+     * @param formatString the template to parse
+     * @return an immutable, thread-safe compiled form of the template
+     */
+    public final CompiledTemplate compile(String formatString) {
+        return new CompiledTemplate(this, formatString);
+    }
 
-    public final String formatScript(String script, Map<String, Object> parameters, Object interpreter) {
+    /**
+     * Parses the passed format string once like {@link #compile(String)} and binds the property paths of the named objects with
+     * a declared type to direct accessor calls. A token like <code>${order.customer.name}</code> then invokes
+     * <code>getCustomer()</code> and <code>getName()</code> without any lookup. Whenever a runtime object is not exactly of the
+     * declared (resp. returned) type, the token is resolved reflectively as usual.
+     * <p>
+     * The accessors are selected with the current property access settings. If these are changed later on, the template falls
+     * back to reflective resolution.
+     *
+     * @param formatString   the template to parse
+     * @param parameterTypes the runtime types of the named objects passed to the template
+     * @return an immutable, thread-safe compiled form of the template
+     */
+    public final CompiledTemplate compile(String formatString, Map<String, Class<?>> parameterTypes) {
+        return new CompiledTemplate(this, formatString, parameterTypes);
+    }
 
-        try {
-            for (Map.Entry<String, Object> stringObjectEntry : parameters.entrySet()) {
-                getInterpreterSetMethod().invoke(interpreter, stringObjectEntry.getKey(), stringObjectEntry.getValue());
-            }
+    /**
+     * Resolves one property name against the passed object. Tries a {@link #registerPropertyAccessor registered accessor}, the
+     * key of a <code>Map</code> and then public fields, bean getters (or record components) and plain methods in this order.
+     * The accessors found are cached per class.
+     *
+     * @return the property value or {@link #UNRESOLVED} if no enabled strategy matched
+     */
+    final Object resolveSegment(Object target, String tokenName) throws IllegalAccessException, InvocationTargetException {
+        return resolveSegment(target, tokenName, null);
+    }
 
-            Object result = getInterpreterEvalMethod().invoke(interpreter, script);
+    /**
+     * Resolves one property name like {@link #resolveSegment(Object, String)} and counts the resolution in the passed
+     * <code>lookups</code> if it has to look up the accessors of the runtime class.
+     *
+     * @param lookups counts the reflective resolutions. May be <code>null</code>
+     */
+    final Object resolveSegment(Object target, String tokenName, TypedPropertyPath.ReflectiveLookups lookups)
+            throws IllegalAccessException, InvocationTargetException {
+        final PropertyAccessorRegistry registry = propertyAccessors;
+        if (!registry.isEmpty()) {
+            final PropertyAccessor<Object> accessor = registry.forClass(target.getClass());
+            if (accessor != null) {
+                final Object value = PropertyAccessorRegistry.get(accessor, target, tokenName);
+                if (value != TemplateFormatter.UNRESOLVED) {
+                    return value;
+                }
+            }
+        }
+        if (target instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) target;
+            if (map.containsKey(tokenName)) {
+                return map.get(tokenName);
+            }
+        }
+        if (lookups != null) {
+            lookups.reflectiveLookups++;
+        }
+        return PropertyAccessors.forClass(target.getClass()).resolve(target, tokenName, formatFields, formatBeanValues,
+                formatMethods);
+    }
 
-            // reset interpreter
-            for (String objectName : parameters.keySet()) {
-                getInterpreterUnsetMethod().invoke(interpreter, objectName);
+    /**
+     * Splits the property path of a token (the part after the object name) into its segment names.
+     */
+    static String[] splitTokenPath(String fullTokenName) {
+        List<String> segments = new ArrayList<String>();
+        int tokenNameIdx = 0;
+        while (tokenNameIdx < fullTokenName.length()) {
+            int nextSubTokenIdx = fullTokenName.indexOf('.', tokenNameIdx + 1);
+            if (nextSubTokenIdx < 0) {
+                nextSubTokenIdx = fullTokenName.length();
             }
+            segments.add(fullTokenName.substring(tokenNameIdx, nextSubTokenIdx));
+            tokenNameIdx = nextSubTokenIdx + 1;
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    static void logPropertyException(Exception e) {
+        if (TemplateFormatter.LOG.isTraceEnabled()) {
+            TemplateFormatter.LOG.trace("Exception during TemplateFormatter: " + e + ". Cause is: ", e.getCause());
+        } else if (TemplateFormatter.LOG.isDebugEnabled()) {
+            TemplateFormatter.LOG.debug("Exception during TemplateFormatter: " + e + ". Cause is: " + e.getCause());
+        }
+    }
+
+    static void logScriptException(Exception e) {
+        if (TemplateFormatter.LOG.isDebugEnabled()) {
+            TemplateFormatter.LOG.debug("Exception during TemplateFormatter script: " + e + ". Cause is: ", e.getCause());
+        } else if (TemplateFormatter.LOG.isWarnEnabled()) {
+            TemplateFormatter.LOG.warn("Exception during TemplateFormatter script: " + e + ". Cause is: " + e.getCause());
+        }
+    }
 
-            return result != null ? result.toString() : nullString;
+
+    public final String formatScript(String script, Map<String, Object> parameters, Object interpreter) {
+
+        try {
+            return evalScript(script, parameters, new InterpreterPool.Interpreter(interpreter));
         } catch (Exception ex) {
-            TemplateFormatter.LOG.error("Exception in TemplateFormatter: " + ex);
-            return "[Script-Error: " + ex.getClass().getName() + "]";
+            return scriptError(ex);
+        }
+    }
+
+    /**
+     * Evaluates the script with the passed named objects as variables.
+     *
+     * @return the script result as String
+     */
+    final String evalScript(String script, Map<String, Object> parameters, InterpreterPool.Interpreter interpreter)
+            throws Exception {
+        Object result = interpreterPool.eval(interpreter, script, parameters);
+        return result != null ? result.toString() : nullString;
+    }
+
+    /**
+     * Evaluates the script with the passed script engine provider and the named objects as variables.
+     *
+     * @return the script result as String
+     */
+    final String evalScript(String script, Map<String, Object> parameters, ScriptEngineProvider provider) throws Exception {
+        final PreparedScripts scripts = preparedScripts;
+        final ScriptEngineProvider.PreparedScript prepared;
+        if (scripts != null && scripts.provider == provider) {
+            prepared = scripts.prepare(script);
+        } else {
+            // provider changed meanwhile
+            prepared = provider.prepare(script);
         }
+        Object result = prepared.eval(parameters, this);
+        return result != null ? result.toString() : nullString;
+    }
+
+    /**
+     * Logs the passed script problem and returns the text to show instead of the script result.
+     */
+    static String scriptError(Exception ex) {
+        TemplateFormatter.LOG.error("Exception in TemplateFormatter: " + ex);
+        return "[Script-Error: " + ex.getClass().getName() + "]";
     }
 
     protected final String formatScripts(String formatString, Map<String, Object> parameters) {
         try {
             final StringBuilder result = new StringBuilder();
-            Object interpreter = null;
+            final ScriptEngineProvider provider = getScriptEngineProvider();
+            InterpreterPool.Interpreter interpreter = null;
             int index = 0;
             int startScript = formatString.indexOf(TemplateFormatter.SCRIPT_START_TAG, index);
             int endScript = formatString.indexOf(TemplateFormatter.SCRIPT_END_TAG, index);
@@ -352,10 +792,25 @@ public class TemplateFormatter {
 
                 // script content
                 String script = formatString.substring(startScript + TemplateFormatter.SCRIPT_START_TAG.length(), endScript);
-                if (interpreter == null) {
-                    interpreter = createInterpreter();
+                if (provider != null) {
+                    try {
+                        result.append(evalScript(script, parameters != null ? parameters
+                                : Collections.<String, Object>emptyMap(), provider));
+                    } catch (Exception ex) {
+                        result.append(scriptError(ex));
+                    }
+                } else {
+                    if (interpreter == null) {
+                        interpreter = interpreterPool.acquire();
+                    }
+                    try {
+                        result.append(evalScript(script, parameters, interpreter));
+                    } catch (Exception ex) {
+                        result.append(scriptError(ex));
+                        // interpreter state is unknown
+                        interpreter = null;
+                    }
                 }
-                result.append(formatScript(script, parameters, interpreter));
 
                 // next script?
                 index = endScript + TemplateFormatter.SCRIPT_END_TAG.length();
@@ -368,20 +823,47 @@ public class TemplateFormatter {
                 result.append(formatString.substring(index));
             }
 
+            if (interpreter != null) {
+                interpreterPool.release(interpreter);
+            }
             return result.toString();
         } catch (Exception e) {
-            if (TemplateFormatter.LOG.isDebugEnabled()) {
-                TemplateFormatter.LOG.debug("Exception during TemplateFormatter script: " + e + ". Cause is: ", e.getCause());
-            } else if (TemplateFormatter.LOG.isWarnEnabled()) {
-                TemplateFormatter.LOG.warn("Exception during TemplateFormatter script: " + e + ". Cause is: " + e.getCause());
-            }
+            TemplateFormatter.logScriptException(e);
         }
         return formatString;
     }
 
 
+    /**
+     * Formats the passed template with the passed named objects by replacing the tokens one after another with
+     * {@link #formatProperties(String, Map)} and evaluating the scripts of the result with {@link #formatScripts(String, Map)}.
+     * <p>
+     * The template is parsed once and taken from the {@link #getTemplateCache() template cache} afterwards. Its compiled form
+     * is rendered with exactly the output of the string replacement: repeated token texts get the value of their first
+     * occurrence, unresolved tokens are kept regardless of the {@link #setUnresolvedPathPolicy(UnresolvedPathPolicy)
+     * unresolved path policy} and script sections contained in values are evaluated. The string replacement scans
+     * substituted values for further tokens, i.e. <code>${a}</code> with <code>a = "${b}"</code> yields the value of
+     * <code>b</code>. Templates with malformed tokens and renders whose values may form a new token (see
+     * {@link CompiledTemplate#replaceTokens(Map)}) are therefore formatted by the string replacement itself. So is every
+     * template if the cache is disabled.
+     * <p>
+     * Each call is reported to the {@link #setRenderListener(RenderListener) render listener}, including the renders falling
+     * back to the string replacement, unless the cache is disabled.
+     * <p>
+     * {@link #formatCompiled(String, Map)} renders the compiled form without these compatibility rules and is somewhat
+     * faster.
+     *
+     * @param formatString the template to format
+     * @param parameters   the named objects referenced by the template. May be <code>null</code>
+     * @return the formatted text
+     */
     public final String format(String formatString, Map<String, Object> parameters) {
-        if (formatFields || formatMethods || formatBeanValues) {
+        final TemplateCache cache = templateCache;
+        if (cache != null) {
+            return cache.get(this, formatString).format(parameters);
+        }
+
+        if (isFormatProperties()) {
             formatString = formatProperties(formatString, parameters);
         }
 
@@ -392,6 +874,184 @@ public class TemplateFormatter {
         return formatString;
     }
 
+    /**
+     * Formats the passed template with the passed named objects, rendering the compiled form of the template taken from the
+     * {@link #getTemplateCache() template cache}. Unlike {@link #format(String, Map)}, each token is replaced by its own value
+     * exactly once:
+     * <ul>
+     * <li>Substituted values are inserted as they are and never scanned for further tokens or script sections, i.e.
+     * <code>${a}</code> with <code>a = "${b}"</code> yields the text <code>${b}</code>.</li>
+     * <li>Each occurrence of a repeated token is resolved again, so getters with side effects are called per occurrence.</li>
+     * <li>Unresolved tokens are rendered according to the {@link #setUnresolvedPathPolicy(UnresolvedPathPolicy) unresolved
+     * path policy}.</li>
+     * <li>Malformed tokens (unclosed <code>${</code>, empty <code>${}</code>, nested tokens, names starting with a dot) stay
+     * in the text, only the well-formed tokens they contain are replaced.</li>
+     * </ul>
+     * Templates without these cases yield the same text with both methods.
+     *
+     * @param formatString the template to format
+     * @param parameters   the named objects referenced by the template. May be <code>null</code>
+     * @return the formatted text
+     * @see #compile(String)
+     */
+    public final String formatCompiled(String formatString, Map<String, Object> parameters) {
+        return getCompiledTemplate(formatString).render(parameters);
+    }
+
+    /**
+     * Formats the passed template with the named objects provided by the passed resolver. The resolver is only asked for the
+     * objects the template references, so callers don't have to build objects unused by the template.
+     *
+     * @param formatString the template to format
+     * @param resolver     provides the named objects
+     * @return the formatted text
+     * @see CompiledTemplate#renderWith(ParameterResolver)
+     */
+    public final String formatWith(String formatString, ParameterResolver resolver) {
+        return getCompiledTemplate(formatString).renderWith(resolver);
+    }
+
+    /**
+     * The names of the objects referenced by the tokens of the passed template, i.e. <code>[customer, order]</code> for
+     * <code>"${customer.name}: ${order.id}"</code>. The template is parsed once and taken from the template cache afterwards.
+     *
+     * @param formatString the template
+     * @return the names in order of appearance
+     * @see CompiledTemplate#getObjectNames()
+     */
+    public final Set<String> getObjectNames(String formatString) {
+        return getCompiledTemplate(formatString).getObjectNames();
+    }
+
+    /**
+     * Formats the passed template with each of the passed parameter maps, i.e. for a mail merge. The template is parsed once and
+     * rendered in parallel on the common <code>ForkJoinPool</code>. The results are passed to the consumer in input order on the
+     * calling thread.
+     *
+     * @param formatString the template to format
+     * @param inputs       the named objects of each render
+     * @param consumer     receives the formatted texts
+     * @return the number of formatted texts
+     * @see CompiledTemplate#renderAll(Iterable, Consumer, Executor, boolean, int)
+     */
+    public final long renderAll(String formatString, Iterable<? extends Map<String, Object>> inputs,
+                                Consumer<? super String> consumer) {
+        return renderAll(formatString, inputs, consumer, ForkJoinPool.commonPool(), true);
+    }
+
+    /**
+     * Formats the passed template with each element of the passed stream like {@link #renderAll(String, Iterable, Consumer)}.
+     * The stream is consumed lazily, only a bounded number of elements is held at a time.
+     */
+    public final long renderAll(String formatString, final Stream<? extends Map<String, Object>> inputs,
+                                Consumer<? super String> consumer) {
+        return renderAll(formatString, new Iterable<Map<String, Object>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Iterator<Map<String, Object>> iterator() {
+                return (Iterator<Map<String, Object>>) inputs.iterator();
+            }
+        }, consumer);
+    }
+
+    /**
+     * Formats the passed template with each of the passed parameter maps in parallel on the passed executor.
+     *
+     * @param formatString the template to format
+     * @param inputs       the named objects of each render
+     * @param consumer     receives the formatted texts, always on the calling thread
+     * @param executor     the executor rendering the templates
+     * @param ordered      <code>true</code> to pass the results in input order, <code>false</code> for completion order
+     * @return the number of formatted texts
+     * @see CompiledTemplate#renderAll(Iterable, Consumer, Executor, boolean, int)
+     */
+    public final long renderAll(String formatString, Iterable<? extends Map<String, Object>> inputs,
+                                Consumer<? super String> consumer, Executor executor, boolean ordered) {
+        return getCompiledTemplate(formatString).renderAll(inputs, consumer, executor, ordered);
+    }
+
+    /**
+     * Formats the passed template asynchronously on the {@link #getAsyncExecutor() default executor}. Named objects passed as
+     * <code>CompletableFuture</code> or <code>Supplier</code> are resolved concurrently, and only if the template references
+     * them:
+     * <pre>
+     * parameters.put("customer", customerService.lookupAsync(id)); // CompletableFuture
+     * parameters.put("history", () -&gt; historyService.load(id));   // Supplier, only called if referenced
+     * formatter.formatAsync("Dear ${customer.name}", parameters).thenAccept(mailer::send);
+     * </pre>
+     *
+     * @param formatString the template to format
+     * @param parameters   the named objects referenced by the template. May be <code>null</code>
+     * @return the formatted text
+     * @see CompiledTemplate#renderAsync(Map, Executor)
+     */
+    public final CompletableFuture<String> formatAsync(String formatString, Map<String, Object> parameters) {
+        return formatAsync(formatString, parameters, TemplateFormatter.getAsyncExecutor());
+    }
+
+    /**
+     * Formats the passed template asynchronously like {@link #formatAsync(String, Map)} on the passed executor.
+     *
+     * @param executor runs the suppliers and the render
+     */
+    public final CompletableFuture<String> formatAsync(String formatString, Map<String, Object> parameters,
+                                                       Executor executor) {
+        return getCompiledTemplate(formatString).renderAsync(parameters, executor);
+    }
+
+    /**
+     * The default executor of {@link #formatAsync(String, Map)}: an executor starting a virtual thread per task if the runtime
+     * supports virtual threads (Java 21 and later), otherwise the common <code>ForkJoinPool</code>.
+     */
+    public static Executor getAsyncExecutor() {
+        return TemplateFormatter.ASYNC_EXECUTOR;
+    }
+
+    private static Executor createAsyncExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // no virtual threads before Java 21
+            return ForkJoinPool.commonPool();
+        }
+    }
+
+    /**
+     * A bit set of the enabled property access strategies, combined with the version of the registered accessors.
+     */
+    final int getPropertyAccessMode() {
+        return (formatFields ? 1 : 0) | (formatBeanValues ? 2 : 0) | (formatMethods ? 4 : 0)
+                | propertyAccessors.getVersion() << 3;
+    }
+
+    /**
+     * Is any kind of property access (fields, bean values or methods) enabled?
+     */
+    final boolean isFormatProperties() {
+        return formatFields || formatMethods || formatBeanValues;
+    }
+
+    /**
+     * Formats the passed template like {@link #formatCompiled(String, Map)} but writes the result directly into the passed
+     * target, i.e. a <code>Writer</code> of a socket or file. No copy of the complete text is held in memory.
+     *
+     * @param formatString the template to format
+     * @param parameters   the named objects referenced by the template. May be <code>null</code>
+     * @param target       the target to write the formatted text to
+     * @throws IOException if the target fails to accept the text
+     */
+    public final void format(String formatString, Map<String, Object> parameters, Appendable target) throws IOException {
+        getCompiledTemplate(formatString).renderTo(parameters, target);
+    }
+
+    /**
+     * The compiled form of the passed template, taken from the template cache if enabled.
+     */
+    private CompiledTemplate getCompiledTemplate(String formatString) {
+        final TemplateCache cache = templateCache;
+        return cache != null ? cache.get(this, formatString) : compile(formatString);
+    }
+
     public final boolean isBeanShellAvailable() {
         try {
             createInterpreter();
@@ -402,11 +1062,21 @@ public class TemplateFormatter {
     }
 
     /**
-     * You can override this method for custom object formatting.
+     * You can override this method for custom object formatting. Prefer a {@link #setValueFormatter(ValueFormatter) value
+     * formatter}, which appends the values without temporary Strings.
      */
     @SuppressWarnings("UnusedDeclaration")
     protected String valueToString(String fulltoken, Object tokenValue) {
-        return tokenValue != null ? tokenValue.toString() : nullString;
+        if (tokenValue == null) {
+            return nullString;
+        }
+        final ValueFormatter formatter = valueFormatter;
+        if (formatter == ValueFormatters.defaults()) {
+            return tokenValue.toString();
+        }
+        StringBuilder text = new StringBuilder();
+        formatter.appendTo(text, tokenValue);
+        return text.toString();
     }
 
 
@@ -430,6 +1100,209 @@ public class TemplateFormatter {
         Class<?> bshInterpreterClass = Class.forName("bsh.Interpreter");
         return bshInterpreterClass.getMethod("eval", String.class);
     }
+
+    /**
+     * Clears everything the scripts of a render left in the interpreter, i.e. the variables and methods they defined, before
+     * the interpreter is pooled for the next render. The default gives a BeanShell interpreter a fresh global
+     * <code>NameSpace</code>. Override this method together with {@link #createInterpreter()}; interpreters which can't be
+     * reset are discarded after use.
+     *
+     * @param interpreter an interpreter created by {@link #createInterpreter()}
+     * @return <code>false</code> if the interpreter can't be reset and must not be reused
+     */
+    @SuppressWarnings("MethodWithTooExceptionsDeclared")
+    protected boolean resetInterpreter(Object interpreter) throws ClassNotFoundException, NoSuchMethodException,
+            IllegalAccessException, InvocationTargetException {
+        return interpreterPool.resetBeanShell(interpreter);
+    }
+
+    /**
+     * Collects the settings of an immutable {@link TemplateFormatter}.
+     *
+     * @see TemplateFormatter#builder()
+     */
+    public static final class Builder {
+        private boolean formatFields = TemplateFormatter.DEFAULT_FIELDS_ENABLED;
+        private boolean formatMethods = TemplateFormatter.DEFAULT_METHODS_ENABLED;
+        private boolean formatScripts = TemplateFormatter.DEFAULT_BSH_ENABLED;
+        private boolean formatBeanValues = TemplateFormatter.DEFAULT_BEANACCESS_ENABLED;
+        private String nullString = TemplateFormatter.DEFAULT_NULL_STRING;
+        private boolean defaultTemplateCache = true;
+        private TemplateCache templateCache;
+        private int interpreterPoolSize = TemplateFormatter.DEFAULT_INTERPRETER_POOL_SIZE;
+        private ScriptEngineProvider scriptEngineProvider;
+        private ValueFormatter valueFormatter = ValueFormatters.defaults();
+        private boolean reuseRenderBuffers;
+        private UnresolvedPathPolicy unresolvedPathPolicy = UnresolvedPathPolicy.KEEP_TOKEN;
+        private PropertyAccessorRegistry propertyAccessors = PropertyAccessorRegistry.EMPTY;
+        private RenderListener renderListener;
+
+        private Builder() {
+        }
+
+        /**
+         * @see TemplateFormatter#setFieldAccessEnabled(boolean)
+         */
+        public Builder fieldAccess(boolean enabled) {
+            formatFields = enabled;
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#setMethodAccessEnabled(boolean)
+         */
+        public Builder methodAccess(boolean enabled) {
+            formatMethods = enabled;
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#setFormatBeanValues(boolean)
+         */
+        public Builder beanValues(boolean enabled) {
+            formatBeanValues = enabled;
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#setScriptingEnabled(boolean)
+         */
+        public Builder scripting(boolean enabled) {
+            formatScripts = enabled;
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#setNullString(String)
+         */
+        public Builder nullString(String nullString) {
+            this.nullString = nullString;
+            return this;
+        }
+
+        /**
+         * Uses the passed cache instead of a new {@link TemplateCache} with default bounds per built formatter.
+         *
+         * @param templateCache the cache or <code>null</code> to disable caching
+         * @see TemplateFormatter#setTemplateCache(TemplateCache)
+         */
+        public Builder templateCache(TemplateCache templateCache) {
+            this.templateCache = templateCache;
+            defaultTemplateCache = false;
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#setInterpreterPoolSize(int)
+         */
+        public Builder interpreterPoolSize(int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("Negative pool size: " + size);
+            }
+            interpreterPoolSize = size;
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#setScriptEngineProvider(ScriptEngineProvider)
+         */
+        public Builder scriptEngineProvider(ScriptEngineProvider provider) {
+            scriptEngineProvider = provider;
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#registerPropertyAccessor(Class, PropertyAccessor)
+         */
+        public <T> Builder propertyAccessor(Class<T> type, PropertyAccessor<? super T> accessor) {
+            if (type == null || accessor == null) {
+                throw new IllegalArgumentException("Type and accessor are required");
+            }
+            propertyAccessors = propertyAccessors.with(type, accessor);
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#setUnresolvedPathPolicy(UnresolvedPathPolicy)
+         */
+        public Builder unresolvedPathPolicy(UnresolvedPathPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("No policy passed");
+            }
+            unresolvedPathPolicy = policy;
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#setReuseRenderBuffers(boolean)
+         */
+        public Builder reuseRenderBuffers(boolean enabled) {
+            reuseRenderBuffers = enabled;
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#setValueFormatter(ValueFormatter)
+         */
+        public Builder valueFormatter(ValueFormatter valueFormatter) {
+            if (valueFormatter == null) {
+                throw new IllegalArgumentException("No value formatter passed");
+            }
+            this.valueFormatter = valueFormatter;
+            return this;
+        }
+
+        /**
+         * @see TemplateFormatter#setRenderListener(RenderListener)
+         */
+        public Builder renderListener(RenderListener renderListener) {
+            this.renderListener = renderListener;
+            return this;
+        }
+
+        /**
+         * Creates a new immutable formatter with the current settings of this builder.
+         */
+        public TemplateFormatter build() {
+            return new TemplateFormatter(this);
+        }
+    }
+
+    /**
+     * Least recently used scripts prepared by one {@link ScriptEngineProvider}.
+     */
+    private static final class PreparedScripts {
+        final ScriptEngineProvider provider;
+        /**
+         * Access ordered, guarded by itself
+         */
+        private final Map<String, ScriptEngineProvider.PreparedScript> scripts =
+                new LinkedHashMap<String, ScriptEngineProvider.PreparedScript>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, ScriptEngineProvider.PreparedScript> eldest) {
+                        return size() > TemplateFormatter.MAX_PREPARED_SCRIPTS;
+                    }
+                };
+
+        PreparedScripts(ScriptEngineProvider provider) {
+            this.provider = provider;
+        }
+
+        ScriptEngineProvider.PreparedScript prepare(String script) throws Exception {
+            ScriptEngineProvider.PreparedScript prepared;
+            synchronized (scripts) {
+                prepared = scripts.get(script);
+            }
+            if (prepared == null) {
+                // prepared outside the lock, concurrent preparation of the same script is harmless
+                prepared = provider.prepare(script);
+                synchronized (scripts) {
+                    scripts.put(script, prepared);
+                }
+            }
+            return prepared;
+        }
+    }
 }
 
 
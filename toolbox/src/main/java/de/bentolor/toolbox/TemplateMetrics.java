@@ -0,0 +1,298 @@
+package de.bentolor.toolbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A {@link RenderListener} aggregating the renders per template source. The counters are <code>LongAdder</code>s, so concurrent
+ * renders don't contend on them. Render times are recorded in a histogram of logarithmic buckets with four sub-buckets per
+ * power of two, so percentiles are exact within 25%.
+ * <p>
+ * At most {@link #getMaxTemplates()} templates are tracked; renders of further templates are only counted by
+ * {@link #getUntrackedRenders()}.
+ * <pre>
+ * TemplateMetrics metrics = new TemplateMetrics();
+ * TemplateFormatter formatter = TemplateFormatter.builder().renderListener(metrics).build();
+ * ...
+ * for (TemplateMetrics.Stats stats : metrics.getSlowest(10)) {
+ *     LOG.info(stats);
+ * }
+ * </pre>
+ */
+public final class TemplateMetrics implements RenderListener {
+
+    /**
+     * Default maximum number of templates tracked ({@value})
+     */
+    public static final int DEFAULT_MAX_TEMPLATES = 1000;
+
+    /**
+     * Number of histogram buckets: exact values below 8, then four per power of two up to <code>2^63</code>
+     */
+    private static final int BUCKETS = 248;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    private final int maxTemplates;
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private final LongAdder untrackedRenders = new LongAdder();
+
+    public TemplateMetrics() {
+        this(TemplateMetrics.DEFAULT_MAX_TEMPLATES);
+    }
+
+    /**
+     * @param maxTemplates the maximum number of distinct templates tracked
+     */
+    public TemplateMetrics(int maxTemplates) {
+        if (maxTemplates < 1) {
+            throw new IllegalArgumentException("At least one template must be tracked: " + maxTemplates);
+        }
+        this.maxTemplates = maxTemplates;
+    }
+
+    @Override
+    public void rendered(CompiledTemplate template, long renderNanos, int outputLength, long scriptNanos,
+                         int reflectiveLookups) {
+        final String source = template.getTemplate();
+        Stats templateStats = stats.get(source);
+        if (templateStats == null) {
+            if (stats.size() >= maxTemplates) {
+                untrackedRenders.increment();
+                return;
+            }
+            final Stats created = new Stats(source);
+            templateStats = stats.putIfAbsent(source, created);
+            if (templateStats == null) {
+                templateStats = created;
+            }
+        }
+        templateStats.record(renderNanos, outputLength, scriptNanos, reflectiveLookups);
+    }
+
+    public int getMaxTemplates() {
+        return maxTemplates;
+    }
+
+    /**
+     * The number of renders of templates not tracked because {@link #getMaxTemplates()} was reached.
+     */
+    public long getUntrackedRenders() {
+        return untrackedRenders.sum();
+    }
+
+    /**
+     * The statistics of the passed template source.
+     *
+     * @return the statistics or <code>null</code> if the template hasn't been rendered yet
+     */
+    public Stats getStats(String template) {
+        return stats.get(template);
+    }
+
+    /**
+     * The statistics of all tracked templates.
+     */
+    public List<Stats> getAllStats() {
+        return new ArrayList<Stats>(stats.values());
+    }
+
+    /**
+     * The templates which took the most time in total, i.e. the best candidates for precompiling.
+     *
+     * @param count the maximum number of templates returned
+     * @return the statistics in descending order of the total render time
+     */
+    public List<Stats> getSlowest(int count) {
+        final List<Stats> all = getAllStats();
+        Collections.sort(all, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats a, Stats b) {
+                return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+            }
+        });
+        return all.size() > count ? new ArrayList<Stats>(all.subList(0, count)) : all;
+    }
+
+    /**
+     * Forgets all statistics collected so far.
+     */
+    public void reset() {
+        stats.clear();
+        untrackedRenders.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "TemplateMetrics[templates=" + stats.size() + ", untrackedRenders=" + getUntrackedRenders() + ']';
+    }
+
+    /**
+     * The histogram bucket of a non-negative value.
+     */
+    static int bucket(long value) {
+        if (value < 8) {
+            return value > 0 ? (int) value : 0;
+        }
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        return (msb - 1) << 2 | (int) (value >>> (msb - 2)) & 3;
+    }
+
+    /**
+     * The largest value of a histogram bucket.
+     */
+    static long bucketMax(int bucket) {
+        if (bucket < 8) {
+            return bucket;
+        }
+        final int shift = (bucket >> 2) - 1;
+        final long lower = (long) (4 | bucket & 3) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * The statistics of one template.
+     */
+    public static final class Stats {
+        private final String template;
+        private final LongAdder renders = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(TemplateMetrics.MAX, 0);
+        /**
+         * Render counts per bucket. Compact, since concurrent renders rarely hit the same bucket at the same time.
+         */
+        private final AtomicLongArray histogram = new AtomicLongArray(TemplateMetrics.BUCKETS);
+        private final LongAdder sizedRenders = new LongAdder();
+        private final LongAdder totalOutputLength = new LongAdder();
+        private final LongAccumulator maxOutputLength = new LongAccumulator(TemplateMetrics.MAX, 0);
+        private final LongAdder scriptNanos = new LongAdder();
+        private final LongAdder reflectiveLookups = new LongAdder();
+
+        Stats(String template) {
+            this.template = template;
+        }
+
+        void record(long nanos, int outputLength, long scriptTime, int lookups) {
+            renders.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            histogram.incrementAndGet(TemplateMetrics.bucket(nanos));
+            if (outputLength >= 0) {
+                sizedRenders.increment();
+                totalOutputLength.add(outputLength);
+                maxOutputLength.accumulate(outputLength);
+            }
+            if (scriptTime > 0) {
+                scriptNanos.add(scriptTime);
+            }
+            if (lookups > 0) {
+                reflectiveLookups.add(lookups);
+            }
+        }
+
+        /**
+         * The template source.
+         */
+        public String getTemplate() {
+            return template;
+        }
+
+        public long getRenderCount() {
+            return renders.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMeanNanos() {
+            final long count = getRenderCount();
+            return count > 0 ? getTotalNanos() / count : 0;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * An upper bound of the render time below which the passed fraction of renders finished. Exceeds the exact value by
+         * at most 25%.
+         *
+         * @param percentile the fraction of renders, i.e. <code>0.99</code>
+         */
+        public long getPercentileNanos(double percentile) {
+            long[] counts = new long[histogram.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(TemplateMetrics.bucketMax(i), getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+
+        /**
+         * The mean number of characters written by the renders with known output length.
+         */
+        public long getMeanOutputLength() {
+            final long count = sizedRenders.sum();
+            return count > 0 ? totalOutputLength.sum() / count : 0;
+        }
+
+        public long getMaxOutputLength() {
+            return maxOutputLength.get();
+        }
+
+        public long getTotalOutputLength() {
+            return totalOutputLength.sum();
+        }
+
+        /**
+         * The time taken by script sections in total.
+         */
+        public long getScriptNanos() {
+            return scriptNanos.sum();
+        }
+
+        /**
+         * The number of property path segments resolved by looking up accessors on the runtime class in total. A template
+         * with many lookups benefits from being compiled with a signature.
+         *
+         * @see TemplateFormatter#compile(String, Map)
+         */
+        public long getReflectiveLookups() {
+            return reflectiveLookups.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[renders=" + getRenderCount() + ", meanNanos=" + getMeanNanos() + ", p99Nanos="
+                    + getPercentileNanos(0.99) + ", maxNanos=" + getMaxNanos() + ", meanOutputLength=" + getMeanOutputLength()
+                    + ", scriptNanos=" + getScriptNanos() + ", reflectiveLookups=" + getReflectiveLookups() + ", template="
+                    + template + ']';
+        }
+    }
+}
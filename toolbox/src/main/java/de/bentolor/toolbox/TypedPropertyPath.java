@@ -0,0 +1,164 @@
+package de.bentolor.toolbox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Binds the property path of a token like <code>${order.customer.name}</code> to a single <code>MethodHandle</code> chain using
+ * the declared type of the named object. Every step invokes the field getter or method found on the declared (resp. returned)
+ * type directly. It is guarded by an exact class check and falls back to the reflective resolution of the
+ * {@link TemplateFormatter} if the runtime type differs, so the result is always the same as on the reflective path.
+ * <p>
+ * The resulting handle is typed <code>(Object, ReflectiveLookups)Object</code> and returns {@link TemplateFormatter#UNRESOLVED}
+ * if a step could not be resolved. The fallback counts its reflective resolutions in the passed {@link ReflectiveLookups}.
+ * <p>
+ * If the last step returns a primitive, an appender handle typed <code>(Object, StringBuilder, ReflectiveLookups)Object</code>
+ * can be bound as well. It appends the primitive to the <code>StringBuilder</code> without boxing and returns {@link #APPENDED}. If a guard
+ * fails, it returns the reflectively resolved value instead, which has to be formatted by the caller.
+ */
+final class TypedPropertyPath {
+
+    /**
+     * Returned by appender handles if the value has been appended.
+     */
+    static final Object APPENDED = new Object();
+
+    private static final MethodHandle IS_EXACTLY;
+    private static final MethodHandle RESOLVE_STEP;
+    private static final MethodType STEP_TYPE = MethodType.methodType(Object.class, Object.class, ReflectiveLookups.class);
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            IS_EXACTLY = lookup.findStatic(TypedPropertyPath.class, "isExactly",
+                    MethodType.methodType(boolean.class, Class.class, Object.class));
+            RESOLVE_STEP = lookup.findStatic(TypedPropertyPath.class, "resolveStep",
+                    MethodType.methodType(Object.class, TemplateFormatter.class, String.class, Object.class,
+                            ReflectiveLookups.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private TypedPropertyPath() {
+    }
+
+    /**
+     * Creates the handle chain resolving <code>path</code> against an object of <code>rootType</code>. Accessors are selected
+     * with the property access settings the formatter has right now.
+     */
+    static MethodHandle bind(TemplateFormatter formatter, Class<?> rootType, String[] path) {
+        return bind(formatter, rootType, path, path.length, null);
+    }
+
+    /**
+     * Creates the appender handle for <code>path</code> if its last step returns a primitive.
+     *
+     * @return the handle typed <code>(Object, StringBuilder, ReflectiveLookups)Object</code> or <code>null</code> if the path
+     * doesn't end with a primitive value on the declared types
+     */
+    static MethodHandle bindAppender(TemplateFormatter formatter, Class<?> rootType, String[] path) {
+        final Class<?>[] ownerType = new Class<?>[1];
+        final MethodHandle prefix = bind(formatter, rootType, path, path.length - 1, ownerType);
+        if (ownerType[0] == null || ownerType[0].isPrimitive() || !formatter.isResolvedReflectively(ownerType[0])) {
+            return null;
+        }
+        final String name = path[path.length - 1];
+        final PropertyAccessors.Accessor accessor = PropertyAccessors.forClass(ownerType[0]).accessor(name,
+                formatter.isFormatFields(), formatter.isFormatBeanValues(), formatter.isFormatMethods());
+        if (accessor == null || accessor.exactHandle() == null || !accessor.valueType().isPrimitive()
+                || accessor.valueType() == void.class) {
+            return null;
+        }
+
+        // StringBuilder has no append(byte) or append(short)
+        Class<?> valueType = accessor.valueType();
+        if (valueType == byte.class || valueType == short.class) {
+            valueType = int.class;
+        }
+        final MethodHandle append;
+        try {
+            append = MethodHandles.lookup().findVirtual(StringBuilder.class, "append",
+                    MethodType.methodType(StringBuilder.class, valueType));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+        // (StringBuilder, Object)StringBuilder -> (Object, StringBuilder)Object returning APPENDED
+        MethodHandle direct = MethodHandles.filterArguments(append, 1,
+                accessor.exactHandle().asType(MethodType.methodType(valueType, Object.class)));
+        direct = MethodHandles.filterReturnValue(direct,
+                MethodHandles.dropArguments(MethodHandles.constant(Object.class, TypedPropertyPath.APPENDED), 0,
+                        StringBuilder.class));
+        direct = MethodHandles.permuteArguments(direct,
+                MethodType.methodType(Object.class, Object.class, StringBuilder.class), 1, 0);
+        direct = MethodHandles.dropArguments(direct, 2, ReflectiveLookups.class);
+
+        final MethodHandle fallback = MethodHandles.dropArguments(
+                MethodHandles.insertArguments(RESOLVE_STEP, 0, formatter, name), 1, StringBuilder.class);
+        final MethodHandle test = MethodHandles.insertArguments(IS_EXACTLY, 0, ownerType[0]);
+        // (value, lookups, target, lookups) -> (value, target, lookups)
+        return MethodHandles.permuteArguments(
+                MethodHandles.collectArguments(MethodHandles.guardWithTest(test, direct, fallback), 0, prefix),
+                MethodType.methodType(Object.class, Object.class, StringBuilder.class, ReflectiveLookups.class), 0, 2, 1, 2);
+    }
+
+    /**
+     * Binds the first <code>steps</code> segments of the path.
+     *
+     * @param resultType receives the declared type of the value returned by the chain, <code>null</code> if unknown. May be
+     *                   <code>null</code>
+     */
+    private static MethodHandle bind(TemplateFormatter formatter, Class<?> rootType, String[] path, int steps,
+                                     Class<?>[] resultType) {
+        MethodHandle chain = MethodHandles.dropArguments(MethodHandles.identity(Object.class), 1, ReflectiveLookups.class);
+        Class<?> stepType = rootType;
+        for (int i = 0; i < steps; i++) {
+            final String name = path[i];
+            MethodHandle fallback = MethodHandles.insertArguments(RESOLVE_STEP, 0, formatter, name);
+            MethodHandle step = fallback;
+
+            PropertyAccessors.Accessor accessor = null;
+            if (stepType != null && !stepType.isPrimitive() && formatter.isResolvedReflectively(stepType)) {
+                accessor = PropertyAccessors.forClass(stepType).accessor(name, formatter.isFormatFields(),
+                        formatter.isFormatBeanValues(), formatter.isFormatMethods());
+            }
+            if (accessor != null && accessor.handle() != null) {
+                step = MethodHandles.guardWithTest(MethodHandles.insertArguments(IS_EXACTLY, 0, stepType),
+                        MethodHandles.dropArguments(accessor.handle(), 1, ReflectiveLookups.class), fallback);
+                stepType = MethodType.methodType(accessor.valueType()).wrap().returnType();
+            } else {
+                // Type of following steps is unknown: resolve them reflectively
+                stepType = null;
+            }
+            // (value, lookups, lookups) -> (value, lookups)
+            chain = MethodHandles.permuteArguments(MethodHandles.collectArguments(step, 0, chain), STEP_TYPE, 0, 1, 1);
+        }
+        if (resultType != null) {
+            resultType[0] = stepType;
+        }
+        return chain;
+    }
+
+    @SuppressWarnings("unused") // invoked via method handle
+    private static boolean isExactly(Class<?> type, Object value) {
+        return value != null && value.getClass() == type;
+    }
+
+    @SuppressWarnings("unused") // invoked via method handle
+    private static Object resolveStep(TemplateFormatter formatter, String name, Object value, ReflectiveLookups lookups)
+            throws IllegalAccessException, InvocationTargetException {
+        if (value == null || value == TemplateFormatter.UNRESOLVED) {
+            return value;
+        }
+        return formatter.resolveSegment(value, name, lookups);
+    }
+
+    /**
+     * Counts the property path segments of a render resolved by looking up accessors on the runtime class.
+     */
+    static class ReflectiveLookups {
+        int reflectiveLookups;
+    }
+}
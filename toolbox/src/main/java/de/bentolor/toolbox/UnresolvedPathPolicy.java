@@ -0,0 +1,22 @@
+package de.bentolor.toolbox;
+
+/**
+ * What a {@link TemplateFormatter} renders for a token which can't be resolved, i.e. <code>${missing}</code> for an object not
+ * passed or <code>${object.missing}</code> for a property not available on the object.
+ *
+ * @see TemplateFormatter#setUnresolvedPathPolicy(UnresolvedPathPolicy)
+ */
+public enum UnresolvedPathPolicy {
+    /**
+     * Keep the token text as it is (default)
+     */
+    KEEP_TOKEN,
+    /**
+     * Render nothing
+     */
+    EMPTY,
+    /**
+     * Render the {@link TemplateFormatter#getNullString() null string}
+     */
+    NULL_STRING
+}
@@ -0,0 +1,31 @@
+package de.bentolor.toolbox;
+
+/**
+ * Writes the text of a token value of a {@link TemplateFormatter}. Values are appended to the output directly instead of being
+ * converted into a temporary <code>String</code> first.
+ * <p>
+ * A custom formatter usually handles a few types on its own and delegates all other values to
+ * {@link ValueFormatters#defaults()}:
+ * <pre>
+ * public void appendTo(StringBuilder target, Object value) {
+ *     if (value instanceof BigDecimal) {
+ *         target.append(((BigDecimal) value).toPlainString());
+ *     } else {
+ *         ValueFormatters.defaults().appendTo(target, value);
+ *     }
+ * }
+ * </pre>
+ *
+ * @see TemplateFormatter#setValueFormatter(ValueFormatter)
+ */
+public interface ValueFormatter {
+
+    /**
+     * Appends the text of the passed value.
+     *
+     * @param target the output to append to
+     * @param value  the value, never <code>null</code>. <code>null</code> is always written as the
+     *               {@link TemplateFormatter#getNullString() null string}
+     */
+    void appendTo(StringBuilder target, Object value);
+}
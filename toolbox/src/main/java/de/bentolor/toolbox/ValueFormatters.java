@@ -0,0 +1,232 @@
+package de.bentolor.toolbox;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * The built-in {@link ValueFormatter}s. All of them write exactly the same text as <code>toString()</code> of the value, but
+ * append numbers, booleans, characters, strings, enums and the common <code>java.time</code> types directly to the output
+ * without creating a temporary <code>String</code>.
+ */
+public final class ValueFormatters {
+
+    private static final ValueFormatter TO_STRING = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            target.append(value.toString());
+        }
+    };
+
+    private static final ValueFormatter INTEGER = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            target.append(((Number) value).intValue());
+        }
+    };
+
+    private static final ValueFormatter LONG = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            target.append(((Long) value).longValue());
+        }
+    };
+
+    private static final ValueFormatter DOUBLE = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            target.append(((Double) value).doubleValue());
+        }
+    };
+
+    private static final ValueFormatter FLOAT = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            target.append(((Float) value).floatValue());
+        }
+    };
+
+    private static final ValueFormatter BOOLEAN = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            target.append(((Boolean) value).booleanValue());
+        }
+    };
+
+    private static final ValueFormatter CHARACTER = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            target.append(((Character) value).charValue());
+        }
+    };
+
+    private static final ValueFormatter CHAR_SEQUENCE = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            target.append((CharSequence) value);
+        }
+    };
+
+    private static final ValueFormatter ENUM_NAME = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            target.append(((Enum<?>) value).name());
+        }
+    };
+
+    private static final ValueFormatter LOCAL_DATE = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            ValueFormatters.appendDate(target, (LocalDate) value);
+        }
+    };
+
+    private static final ValueFormatter LOCAL_TIME = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            ValueFormatters.appendTime(target, (LocalTime) value);
+        }
+    };
+
+    private static final ValueFormatter LOCAL_DATE_TIME = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            final LocalDateTime dateTime = (LocalDateTime) value;
+            ValueFormatters.appendDate(target, dateTime.toLocalDate());
+            target.append('T');
+            ValueFormatters.appendTime(target, dateTime.toLocalTime());
+        }
+    };
+
+    private static final ValueFormatter INSTANT = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            DateTimeFormatter.ISO_INSTANT.formatTo((Instant) value, target);
+        }
+    };
+
+    private static final ClassValue<ValueFormatter> BY_CLASS = new ClassValue<ValueFormatter>() {
+        @Override
+        protected ValueFormatter computeValue(Class<?> type) {
+            return ValueFormatters.forType(type);
+        }
+    };
+
+    private static final ValueFormatter DEFAULTS = new ValueFormatter() {
+        @Override
+        public void appendTo(StringBuilder target, Object value) {
+            ValueFormatters.BY_CLASS.get(value.getClass()).appendTo(target, value);
+        }
+    };
+
+    private ValueFormatters() {
+    }
+
+    /**
+     * The default formatter of the {@link TemplateFormatter}. Picks the built-in formatter matching the runtime class of each
+     * value.
+     */
+    public static ValueFormatter defaults() {
+        return ValueFormatters.DEFAULTS;
+    }
+
+    /**
+     * A formatter appending <code>toString()</code> of the values.
+     */
+    public static ValueFormatter toStringFormatter() {
+        return ValueFormatters.TO_STRING;
+    }
+
+    /**
+     * The built-in formatter for values of exactly the passed class.
+     *
+     * @return the specialized formatter or the {@link #toStringFormatter()} if there is none for this class
+     */
+    public static ValueFormatter forType(Class<?> type) {
+        if (type == Integer.class || type == Short.class || type == Byte.class) {
+            return ValueFormatters.INTEGER;
+        } else if (type == Long.class) {
+            return ValueFormatters.LONG;
+        } else if (type == Double.class) {
+            return ValueFormatters.DOUBLE;
+        } else if (type == Float.class) {
+            return ValueFormatters.FLOAT;
+        } else if (type == Boolean.class) {
+            return ValueFormatters.BOOLEAN;
+        } else if (type == Character.class) {
+            return ValueFormatters.CHARACTER;
+        } else if (type == String.class || type == StringBuilder.class || type == StringBuffer.class) {
+            return ValueFormatters.CHAR_SEQUENCE;
+        } else if (type == LocalDate.class) {
+            return ValueFormatters.LOCAL_DATE;
+        } else if (type == LocalTime.class) {
+            return ValueFormatters.LOCAL_TIME;
+        } else if (type == LocalDateTime.class) {
+            return ValueFormatters.LOCAL_DATE_TIME;
+        } else if (type == Instant.class) {
+            return ValueFormatters.INSTANT;
+        } else if (Enum.class.isAssignableFrom(type) && !overridesToString(type)) {
+            return ValueFormatters.ENUM_NAME;
+        }
+        return ValueFormatters.TO_STRING;
+    }
+
+    private static boolean overridesToString(Class<?> enumType) {
+        try {
+            return enumType.getMethod("toString").getDeclaringClass() != Enum.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Same output as <code>LocalDate.toString()</code>
+     */
+    private static void appendDate(StringBuilder target, LocalDate date) {
+        final int year = date.getYear();
+        final int month = date.getMonthValue();
+        final int day = date.getDayOfMonth();
+        final int start = target.length();
+        if (Math.abs(year) < 1000) {
+            if (year < 0) {
+                target.append(year - 10000).deleteCharAt(start + 1);
+            } else {
+                target.append(year + 10000).deleteCharAt(start);
+            }
+        } else {
+            if (year > 9999) {
+                target.append('+');
+            }
+            target.append(year);
+        }
+        target.append(month < 10 ? "-0" : "-").append(month).append(day < 10 ? "-0" : "-").append(day);
+    }
+
+    /**
+     * Same output as <code>LocalTime.toString()</code>
+     */
+    private static void appendTime(StringBuilder target, LocalTime time) {
+        final int hour = time.getHour();
+        final int minute = time.getMinute();
+        final int second = time.getSecond();
+        final int nano = time.getNano();
+        target.append(hour < 10 ? "0" : "").append(hour).append(minute < 10 ? ":0" : ":").append(minute);
+        if (second > 0 || nano > 0) {
+            target.append(second < 10 ? ":0" : ":").append(second);
+            if (nano > 0) {
+                target.append('.');
+                final int start = target.length();
+                if (nano % 1000000 == 0) {
+                    target.append(nano / 1000000 + 1000);
+                } else if (nano % 1000 == 0) {
+                    target.append(nano / 1000 + 1000000);
+                } else {
+                    target.append(nano + 1000000000);
+                }
+                target.deleteCharAt(start);
+            }
+        }
+    }
+}
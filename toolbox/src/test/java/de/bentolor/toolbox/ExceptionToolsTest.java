@@ -6,7 +6,22 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 import static org.junit.Assert.*;
 
@@ -68,6 +83,111 @@ public class ExceptionToolsTest {
         assertTrue(line1SurroundCode.getCode()[0].trim().length() > 0);
     }
 
+    @Test
+    public void sourceCache() throws Exception {
+        File dir = File.createTempFile("sources", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File pkg = new File(dir, "de" + File.separatorChar + "example");
+        assertTrue(pkg.mkdirs());
+        File source = new File(pkg, "Cached.java");
+        writeLines(source, "package de.example;", "class Cached {", "}");
+        StackTraceElement spot = new StackTraceElement("de.example.Cached", "foo", "Cached.java", 2);
+        File[] paths = {new File(dir, "missing"), dir};
+
+        SourceCache cache = new SourceCache(2, 100);
+        SourceCache previous = ExceptionTools.getSourceCache();
+        ExceptionTools.setSourceCache(cache);
+        try {
+            assertEquals("class Cached {", ExceptionTools.retrieveProblemDetails(null, spot, paths, 0).getCode()[0]);
+            assertEquals("class Cached {", ExceptionTools.retrieveProblemDetails(null, spot, paths, 0).getCode()[0]);
+            assertEquals(1, cache.getMissCount());
+            assertEquals(1, cache.getHitCount());
+            assertEquals(1, cache.size());
+            assertEquals(37, cache.getWeight());
+
+            // modified files are read again
+            writeLines(source, "package de.example;", "class Changed {", "}");
+            assertTrue(source.setLastModified(source.lastModified() + 2000));
+            assertEquals("class Changed {", ExceptionTools.retrieveProblemDetails(null, spot, paths, 0).getCode()[0]);
+            assertEquals(1, cache.getInvalidationCount());
+            assertEquals(2, cache.getMissCount());
+
+            // files beyond the weight bound evict the older ones or are not cached at all
+            File other = new File(pkg, "Other.java");
+            writeLines(other, "package de.example;", "class Other {", "    // a comment making the file much heavier", "}");
+            StackTraceElement otherSpot = new StackTraceElement("de.example.Other", "foo", "Other.java", 2);
+            assertEquals("class Other {", ExceptionTools.retrieveProblemDetails(null, otherSpot, paths, 0).getCode()[0]);
+            assertEquals(1, cache.getEvictionCount());
+            assertEquals(1, cache.size());
+            writeLines(other, "package de.example;", "class Other {", "    // a comment making the file much heavier",
+                    "    // and another one exceeding the bound of the cache", "}");
+            assertTrue(other.setLastModified(other.lastModified() + 2000));
+            assertEquals("class Other {", ExceptionTools.retrieveProblemDetails(null, otherSpot, paths, 0).getCode()[0]);
+            assertEquals(0, cache.size());
+            assertEquals(0, cache.getWeight());
+
+            // moved files are found again
+            File moved = new File(dir, "moved");
+            assertTrue(new File(moved, "de").mkdirs());
+            assertTrue(pkg.renameTo(new File(moved, "de" + File.separatorChar + "example")));
+            File[] morePaths = {new File(dir, "missing"), dir, moved};
+            assertNotNull(ExceptionTools.retrieveProblemDetails(null, spot, morePaths, 0));
+        } finally {
+            ExceptionTools.setSourceCache(previous);
+            delete(dir);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void sourceLines() throws Exception {
+        SourceLines lines = SourceLines.read(new ByteArrayInputStream(
+                "first\r\nsecond\rthird\n\nfifth \u00e4\u00f6\u00fc".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(5, lines.lineCount());
+        assertEquals("first", lines.line(0));
+        assertEquals("second", lines.line(1));
+        assertEquals("third", lines.line(2));
+        assertEquals("", lines.line(3));
+        assertEquals("fifth \u00e4\u00f6\u00fc", lines.line(4));
+        assertEquals(2, SourceLines.read(new ByteArrayInputStream("a\nb\n".getBytes(StandardCharsets.UTF_8))).lineCount());
+        assertEquals(0, SourceLines.read(new ByteArrayInputStream(new byte[0])).lineCount());
+
+        // slow streams are read up to their end
+        InputStream slow = new FilterInputStream(new ByteArrayInputStream("a\nb\nc".getBytes(StandardCharsets.UTF_8))) {
+            @Override
+            public int available() {
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        assertEquals("c", SourceLines.read(slow).line(2));
+    }
+
+    private static void writeLines(File file, String... lines) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
     @Test
     public void codePointFiltering() {
         StackTraceElement[] stackTrace = new IllegalArgumentException().getStackTrace();
@@ -108,6 +228,174 @@ public class ExceptionToolsTest {
         ExceptionToolsTest.LOG.info(message);
     }
 
+    @Test
+    public void asyncReport() throws Exception {
+        AsyncExceptionReporter reporter = new AsyncExceptionReporter(8, AsyncExceptionReporter.OverflowPolicy.BLOCK);
+        assertNull(ExceptionTools.getAsyncReporter());
+        ExceptionTools.setAsyncReporter(reporter);
+        try {
+            for (int i = 0; i < 100; i++) {
+                String id = ExceptionTools.report(Level.FINEST, "Async report " + i, new IllegalStateException());
+                assertTrue(id, id.matches("[a-zA-Z0-9]+"));
+            }
+            assertTrue(reporter.flush(10, TimeUnit.SECONDS));
+            assertEquals(100, reporter.getSubmittedCount());
+            assertEquals(100, reporter.getWrittenCount());
+            assertEquals(0, reporter.getDroppedCount());
+            assertEquals(0, reporter.getQueueSize());
+        } finally {
+            ExceptionTools.setAsyncReporter(null);
+            assertTrue(reporter.close(10, TimeUnit.SECONDS));
+        }
+        assertNotNull(reporter.report(Level.FINEST, "After close", null));
+        assertEquals(100, reporter.getSubmittedCount());
+    }
+
+    @Test
+    public void asyncReportOverflow() throws Exception {
+        // without writer thread, the queue is drained by the test
+        List<AsyncExceptionReporter.Event> batch = new ArrayList<AsyncExceptionReporter.Event>();
+        AsyncExceptionReporter dropOldest =
+                new AsyncExceptionReporter(3, AsyncExceptionReporter.OverflowPolicy.DROP_OLDEST, 1, false);
+        assertEquals(4, dropOldest.getCapacity());
+        for (int i = 0; i < 10; i++) {
+            dropOldest.report(Level.FINEST, "Dropped " + i, null);
+        }
+        assertEquals(4, dropOldest.getQueueSize());
+        assertEquals(6, dropOldest.getOverflowCount());
+        assertEquals(6, dropOldest.getDroppedCount());
+        assertEquals(4, dropOldest.drain(batch));
+        assertEquals(0, dropOldest.getQueueSize());
+        assertTrue(dropOldest.flush(0, TimeUnit.SECONDS));
+
+        AsyncExceptionReporter sample = new AsyncExceptionReporter(4, AsyncExceptionReporter.OverflowPolicy.SAMPLE, 3, false);
+        for (int i = 0; i < 16; i++) {
+            sample.report(Level.FINEST, "Sampled " + i, null);
+        }
+        // of the 12 overflows, 4 replaced queued reports and 8 were discarded
+        assertEquals(12, sample.getOverflowCount());
+        assertEquals(12, sample.getDroppedCount());
+        assertEquals(4, sample.drain(batch));
+        assertEquals(16, sample.getSubmittedCount());
+
+        final AsyncExceptionReporter block = new AsyncExceptionReporter(2, AsyncExceptionReporter.OverflowPolicy.BLOCK, 1, false);
+        block.report(Level.FINEST, "Queued", null);
+        block.report(Level.FINEST, "Queued", null);
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                block.report(Level.FINEST, "Blocked", null);
+            }
+        });
+        blocked.start();
+        while (block.getOverflowCount() == 0) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(5);
+        assertTrue(blocked.isAlive());
+        assertEquals(2, block.drain(batch));
+        blocked.join(10000);
+        assertFalse(blocked.isAlive());
+        assertEquals(1, block.drain(batch));
+        assertEquals(0, block.getDroppedCount());
+        assertTrue(block.getBlockedNanos() > 0);
+    }
+
+    @Test
+    public void asyncReportWhileClosing() throws Exception {
+        final AsyncExceptionReporter reporter = new AsyncExceptionReporter(64, AsyncExceptionReporter.OverflowPolicy.DROP_OLDEST);
+        Thread[] reporters = new Thread[4];
+        for (int t = 0; t < reporters.length; t++) {
+            reporters[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        reporter.report(Level.FINEST, "Closing " + i, null);
+                    }
+                }
+            });
+            reporters[t].start();
+        }
+        while (reporter.getSubmittedCount() < 1000) {
+            Thread.sleep(1);
+        }
+        assertTrue(reporter.close(10, TimeUnit.SECONDS));
+        for (Thread thread : reporters) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        // every report submitted before the close was either written or dropped, none left queued
+        assertEquals(0, reporter.getQueueSize());
+        assertEquals(reporter.getSubmittedCount(), reporter.getWrittenCount() + reporter.getDroppedCount());
+    }
+
+    private static Exception failAt(int spot, String message) {
+        // the exceptions created per spot differ in their line number only
+        if (spot == 0) {
+            return new IllegalStateException(message);
+        }
+        return new IllegalStateException(message);
+    }
+
+    @Test
+    public void fingerprint() {
+        String fingerprint = ExceptionTools.fingerprint(failAt(0, "first"), "de.bentolor");
+        assertTrue(fingerprint, fingerprint.matches("[a-z0-9]+"));
+        assertEquals(fingerprint, ExceptionTools.fingerprint(failAt(0, "second"), "de.bentolor"));
+        assertFalse(fingerprint.equals(ExceptionTools.fingerprint(failAt(1, "first"), "de.bentolor")));
+        assertFalse(fingerprint.equals(ExceptionTools.fingerprint(new RuntimeException(failAt(0, "first")), "de.bentolor")));
+        assertEquals(ExceptionTools.fingerprint(null), ExceptionTools.fingerprint(null));
+    }
+
+    @Test
+    public void deduplicatedReport() {
+        ExceptionDeduplicator dedup = new ExceptionDeduplicator(1, TimeUnit.HOURS, "de.bentolor");
+        assertNull(ExceptionTools.getDeduplicator());
+        ExceptionTools.setDeduplicator(dedup);
+        try {
+            String id = ExceptionTools.report(Level.FINEST, "Repeated", failAt(0, "first"));
+            for (int i = 0; i < 4; i++) {
+                assertEquals(id, ExceptionTools.report(Level.FINEST, "Repeated", failAt(0, "repeat " + i)));
+            }
+            String otherId = ExceptionTools.report(Level.FINEST, "Other", failAt(1, "other"));
+            assertFalse(id.equals(otherId));
+
+            List<ExceptionDeduplicator.Summary> summaries = dedup.getSummaries();
+            assertEquals(2, summaries.size());
+            assertEquals(5, summaries.get(0).getCount());
+            assertEquals(id, summaries.get(0).getId());
+            assertEquals("first", summaries.get(0).getFirstMessage());
+            assertEquals(IllegalStateException.class.getName(), summaries.get(0).getExceptionClass());
+            assertEquals(1, dedup.getSummary(ExceptionTools.fingerprint(failAt(1, ""), "de.bentolor")).getCount());
+
+            assertEquals(2, dedup.logSummary());
+            assertEquals(0, dedup.logSummary());
+            ExceptionTools.report(Level.FINEST, "Repeated", failAt(0, "again"));
+            assertEquals(1, dedup.logSummary());
+        } finally {
+            ExceptionTools.setDeduplicator(null);
+        }
+
+        // every report is logged without window
+        ExceptionDeduplicator noWindow = new ExceptionDeduplicator(0, TimeUnit.SECONDS, "de.bentolor");
+        String first = noWindow.report(Level.FINEST, null, failAt(0, "first"));
+        assertFalse(first.equals(noWindow.report(Level.FINEST, null, failAt(0, "second"))));
+        assertEquals(2, noWindow.getSummaries().get(0).getCount());
+        assertEquals(1, noWindow.logSummary());
+        // idle since the last summary: forgotten, and tracked afresh by the next report
+        assertEquals(0, noWindow.logSummary());
+        assertEquals(0, noWindow.getSummaries().size());
+        noWindow.report(Level.FINEST, null, failAt(0, "third"));
+        assertEquals(1, noWindow.getSummaries().get(0).getCount());
+
+        // fingerprints beyond the bound are logged every time
+        ExceptionDeduplicator bounded = new ExceptionDeduplicator(1, TimeUnit.HOURS, 1, "de.bentolor");
+        bounded.report(Level.FINEST, null, failAt(0, "tracked"));
+        bounded.report(Level.FINEST, null, failAt(1, "untracked"));
+        assertEquals(1, bounded.getSummaries().size());
+        assertEquals(1, bounded.getUntrackedCount());
+    }
+
     @Test
     public void testIDGeneration() {
         String sampleID = ExceptionTools.generateID();
@@ -120,4 +408,38 @@ public class ExceptionToolsTest {
         }
     }
 
+    @Test
+    public void idGenerators() throws Exception {
+        assertSame(IdGenerators.sequential(), ExceptionTools.getIdGenerator());
+        final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 3 * IdGenerators.BLOCK_SIZE; j++) {
+                        ids.add(IdGenerators.sequential().nextId());
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * 3 * IdGenerators.BLOCK_SIZE, ids.size());
+        String sequential = IdGenerators.sequential().nextId();
+        assertTrue(sequential, sequential.matches("[a-z0-9]{9,}"));
+        String prefix = sequential.substring(0, IdGenerators.PREFIX_LENGTH);
+        assertTrue(ids.iterator().next().startsWith(prefix));
+
+        ExceptionTools.setIdGenerator(IdGenerators.randomUuid());
+        try {
+            String random = ExceptionTools.generateID();
+            assertTrue(random, random.matches("[a-z0-9]{5,}"));
+        } finally {
+            ExceptionTools.setIdGenerator(IdGenerators.sequential());
+        }
+    }
+
 }
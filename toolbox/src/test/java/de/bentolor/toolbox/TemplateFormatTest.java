@@ -5,11 +5,39 @@ import org.apache.commons.logging.LogFactory;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.script.*;
 import java.awt.*;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TemplateFormatTest {
     /**
@@ -113,12 +141,1199 @@ public class TemplateFormatTest {
         assertEquals("a  b", formatter.format(s, m));
     }
 
+    @Test
+    public void compiledTemplateMatchesFormat() {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        map.put("foo", "bar");
+        map.put("size", new Dimension(11, 12));
+        map.put("v", null);
+        map.put("b", new BMethod());
+        map.put("sb", new StringBuffer("value"));
+
+        String[] templates = {"", "plain text", "${foo}", "${foo.toUpperCase}", "${size.width}x${size.height}",
+                "${size.size}", "${foo} and ${foo} again", "${missing} in ${foo}.", "a ${v} b", "a ${v.c} b",
+                "${foo.nope}. for {all}", "${foo.nope.length} ${foo.length}", "{{.{ala } } {gigi}",
+                "${a${b}}${${c}}{$f.}", "${foo.}${.foo}${}", "${sb.toString} ${sb.length}", "${foo} ${b.b} ${foo}",
+                "<bsh>return 1;</bsh>", "</bsh>${foo}<bsh>${foo}", "x<bsh>${foo}</bsh>y", "namef${b.b}${foo}${b.b}${foo}",
+                "${foo}${b.b}${size.width}${foo}${size.width}${b.b}"};
+        for (String template : templates) {
+            assertEquals(template, formatter.format(template, map), formatter.compile(template).render(map));
+            assertEquals(template, formatter.format(template, null), formatter.compile(template).render(null));
+        }
+
+        // format() scans substituted values for further tokens, compiled templates don't
+        map.put("nested", "A${size.width}");
+        assertEquals("A11", formatter.format("${nested}", map));
+        assertEquals("A${size.width}", formatter.formatCompiled("${nested}", map));
+    }
+
+    @Test
+    public void formatMatchesStringReplacement() {
+        formatter.setScriptingEnabled(true);
+        formatter.setScriptEngineProvider(new ExpressionScriptEngineProvider());
+        final String[] pieces = {"${a}", "${b}", "${c.name}", "${c.nothing}", "${c.nothing.name}", "${c.none}",
+                "${n.name}", "${missing}", "${", "}", "$", "{", ".", "x", " + ", "<bsh>", "</bsh>", "${}", "${.a}", "${a${b}}"};
+        final String[] values = {"A", "", "$", "x$", "{b}", "$5", "${b}", "${c.name}", "<bsh>2</bsh>", "}", "<bsh>", "a.b"};
+        final Random random = new Random(42);
+        int compiled = 0;
+        for (int i = 0; i < 20000; i++) {
+            final StringBuilder template = new StringBuilder();
+            for (int j = random.nextInt(8); j >= 0; j--) {
+                template.append(pieces[random.nextInt(pieces.length)]);
+            }
+            final String a = values[random.nextInt(values.length)];
+            final String b = values[random.nextInt(values.length)];
+            final Map<String, Object> parameters = counterParameters(a, b);
+            final String expected = formatter.formatScripts(
+                    formatter.formatProperties(template.toString(), parameters), parameters);
+            assertEquals(template + " a=" + a + " b=" + b, expected, formatter.format(template.toString(), parameters));
+            if (formatter.compile(template.toString()).replaceTokens(parameters) != null) {
+                compiled++;
+            }
+        }
+        assertTrue("compiled renders: " + compiled, compiled > 5000);
+
+        // failing property accesses stop the replacement
+        final String failing = "${a} ${c.next} ${f.b} ${b} ${c.next} ${a}";
+        final Map<String, Object> m = counterParameters("A", "B");
+        m.put("f", new BMethod());
+        assertEquals("A 0 ${f.b} ${b} 0 A", formatter.formatProperties(failing, m));
+        m.put("c", new Counter());
+        assertEquals("A 0 ${f.b} ${b} 0 A", formatter.format(failing, m));
+    }
+
+    @Test
+    public void formatFallsBackToStringReplacement() {
+        final Map<String, Object> m = new HashMap<String, Object>();
+        m.put("a", "x");
+        m.put("c", new Counter());
+        // well-formed templates with plain values are rendered compiled, repeated tokens share their first value
+        assertEquals("x 0 0 $x ${missing}", formatter.compile("${a} ${c.next} ${c.next} $${a} ${missing}")
+                .replaceTokens(m));
+        assertEquals("x 1 2", formatter.formatCompiled("${a} ${c.next} ${c.next}", m));
+        // malformed tokens
+        assertEquals(null, formatter.compile("${a").replaceTokens(m));
+        assertEquals(null, formatter.compile("${}${a}").replaceTokens(m));
+        assertEquals(null, formatter.compile("${.a}${a}").replaceTokens(m));
+        assertEquals(null, formatter.compile("${a${a}}").replaceTokens(m));
+        assertEquals(null, formatter.compile("<bsh>${a</bsh>}").replaceTokens(m));
+        // values forming new tokens
+        for (String value : new String[]{"${b}", "z$", "$"}) {
+            m.put("a", value);
+            assertEquals(value, null, formatter.compile("${a}{b}").replaceTokens(m));
+        }
+        m.put("a", "{b}");
+        assertEquals(null, formatter.compile("$${a}").replaceTokens(m));
+        m.put("a", "");
+        assertEquals(null, formatter.compile("$${a}{b}").replaceTokens(m));
+        m.put("a", "$5 {b}");
+        assertEquals("$5 {b}", formatter.compile("${a}").replaceTokens(m));
+
+        m.put("a", "${b}");
+        m.put("b", "y");
+        assertEquals("y y", formatter.format("${a} ${b}", m));
+        m.put("a", "");
+        assertEquals("y y", formatter.format("$${a}{b} ${b}", m));
+
+        // script sections within values are evaluated like before
+        formatter.setScriptingEnabled(true);
+        formatter.setScriptEngineProvider(new ExpressionScriptEngineProvider());
+        m.put("a", "<bsh>1 + 2</bsh>");
+        assertEquals("3", formatter.format("${a}", m));
+        assertEquals("<bsh>1 + 2</bsh>", formatter.formatCompiled("${a}", m));
+    }
+
+    private static Map<String, Object> counterParameters(String a, String b) {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("a", a);
+        parameters.put("b", b);
+        parameters.put("c", new Counter());
+        parameters.put("n", null);
+        return parameters;
+    }
+
+    @Test
+    public void templateCache() {
+        TemplateCache cache = new TemplateCache(2, 1000);
+        formatter.setTemplateCache(cache);
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("a", "x");
+
+        assertEquals("1x", formatter.formatCompiled("1${a}", m));
+        assertEquals("1x", formatter.formatCompiled("1${a}", m));
+        assertEquals("2x", formatter.formatCompiled("2${a}", m));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+
+        // least recently used "2${a}" gets evicted
+        assertEquals("1x", formatter.formatCompiled("1${a}", m));
+        assertEquals("3x", formatter.formatCompiled("3${a}", m));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.size());
+        assertEquals(10, cache.getWeight());
+        assertEquals("2x", formatter.formatCompiled("2${a}", m));
+        assertEquals(4, cache.getMissCount());
+
+        // too heavy to be cached at all
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 1001; i++) {
+            big.append('.');
+        }
+        assertEquals(big.toString(), formatter.formatCompiled(big.toString(), m));
+        assertEquals(2, cache.size());
+        assertTrue(cache.getWeight() <= cache.getMaxWeight());
+
+        formatter.setTemplateCache(null);
+        assertEquals("1x", formatter.formatCompiled("1${a}", m));
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void compiledTemplateIsReusable() {
+        CompiledTemplate template = formatter.compile("Hello ${name.toUpperCase}, you owe ${amount}.");
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("name", "joe");
+        m.put("amount", 12);
+        assertEquals("Hello JOE, you owe 12.", template.render(m));
+        m.put("name", "ann");
+        m.put("amount", 7);
+        assertEquals("Hello ANN, you owe 7.", template.render(m));
+    }
+
+    @Test
+    public void formatIntoWriter() throws IOException {
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("foo", "bar");
+        m.put("size", new Dimension(3, 4));
+        StringWriter writer = new StringWriter();
+        formatter.format("${foo.toUpperCase}: ${size.width}x${size.height} ${missing}", m, writer);
+        assertEquals("BAR: 3x4 ${missing}", writer.toString());
+
+        StringBuilder target = new StringBuilder("> ");
+        formatter.compile("${foo}!").renderTo(m, target);
+        assertEquals("> bar!", target.toString());
+    }
+
+    @Test
+    public void typedCompiledTemplate() {
+        Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+        types.put("p", Precedence.class);
+        types.put("size", Dimension.class);
+        types.put("foo", String.class);
+        String template = "${p.value} ${p.number.toString.length} ${size.width} ${size.size.height} ${foo.toUpperCase} "
+                + "${p.unknown.x} ${p.nothing.x}";
+        CompiledTemplate typed = formatter.compile(template, types);
+
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("p", new Precedence());
+        m.put("size", new Dimension(3, 4));
+        m.put("foo", "bar");
+        assertEquals(formatter.format(template, m), typed.render(m));
+        assertEquals("field 2 3 4 BAR ${p.unknown.x} ", typed.render(m));
+
+        // runtime types differing from the declared ones use the reflective path
+        m.put("p", new Object() {
+            public String value = "other";
+        });
+        m.put("size", new Dimension(5, 6) {
+        });
+        m.put("foo", new StringBuilder("sb"));
+        assertEquals(formatter.format(template, m), typed.render(m));
+
+        formatter.setFieldAccessEnabled(false);
+        assertEquals(formatter.format(template, m), typed.render(m));
+    }
+
+    @Test
+    public void scriptInterpretersArePooled() {
+        StandInFormatter scripting = new StandInFormatter();
+        scripting.setScriptingEnabled(true);
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("foo", "bar");
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("[foo=bar] [foo=bar]", scripting.format("<bsh>vars</bsh> <bsh>vars</bsh>", m));
+        }
+        assertEquals(1, scripting.created);
+
+        // variables are unset after use and failing interpreters are dropped
+        assertEquals("[Script-Error: java.lang.reflect.InvocationTargetException]", scripting.format("<bsh>fail</bsh>", m));
+        assertEquals("{}", scripting.lastCreated.variables.toString());
+        assertEquals("[foo=bar]", scripting.format("<bsh>vars</bsh>", m));
+        assertEquals(2, scripting.created);
+
+        scripting.setInterpreterPoolSize(0);
+        scripting.format("<bsh>vars</bsh>", m);
+        scripting.format("<bsh>vars</bsh>", m);
+        assertEquals(4, scripting.created);
+    }
+
+    @Test
+    public void pooledInterpretersForgetScriptVariables() {
+        StandInFormatter scripting = new StandInFormatter();
+        scripting.setScriptingEnabled(true);
+        Map<String, Object> customer = new HashMap<String, Object>();
+        customer.put("customer", "Alice");
+
+        assertEquals("Alice", scripting.format("<bsh>secret = customer</bsh>", customer));
+        assertEquals("[]", scripting.format("<bsh>vars</bsh>", new HashMap<String, Object>()));
+        assertEquals(1, scripting.created);
+
+        // interpreters which can't be reset are not pooled
+        TemplateFormatter unresettable = new StandInFormatter() {
+            @Override
+            protected boolean resetInterpreter(Object interpreter) {
+                return false;
+            }
+        };
+        unresettable.setScriptingEnabled(true);
+        assertEquals("Alice", unresettable.format("<bsh>secret = customer</bsh>", customer));
+        assertEquals("[]", unresettable.format("<bsh>vars</bsh>", new HashMap<String, Object>()));
+        assertEquals(2, ((StandInFormatter) unresettable).created);
+
+        if (formatter.isBeanShellAvailable()) {
+            formatter.setScriptingEnabled(true);
+            assertEquals("Alice", formatter.format("<bsh>secret = customer; return secret;</bsh>", customer));
+            assertEquals("<null>", formatter.format("<bsh>return secret;</bsh>", new HashMap<String, Object>()));
+            assertEquals("Alice", formatter.compile("<bsh>secret = customer; return secret;</bsh>").render(customer));
+            assertEquals("<null>", formatter.compile("<bsh>return secret;</bsh>").render(new HashMap<String, Object>()));
+        }
+    }
+
+    @Test
+    public void compilableScriptsAreParsedOnce() {
+        final CompilingEngine engine = new CompilingEngine();
+        TemplateFormatter scripting = new TemplateFormatter() {
+            @Override
+            protected Object createInterpreter() {
+                return engine;
+            }
+        };
+        scripting.setScriptingEnabled(true);
+        Map<String, Object> m = new HashMap<String, Object>();
+
+        for (int i = 0; i < 10; i++) {
+            m.put("a", i);
+            m.put("b", "-");
+            assertEquals(i + "- " + i + "- -" + i, scripting.format("<bsh>a + b</bsh> <bsh>a+b</bsh> <bsh>b + a</bsh>", m));
+        }
+        assertEquals(3, engine.compilations.get());
+        assertEquals("[Script-Error: java.lang.reflect.InvocationTargetException]", scripting.format("<bsh>!</bsh>", m));
+    }
+
+    @Test
+    public void threadSafeEnginesShareCompiledScripts() {
+        final AtomicInteger compilations = new AtomicInteger();
+        final AtomicInteger created = new AtomicInteger();
+        final TemplateFormatter scripting = new TemplateFormatter() {
+            @Override
+            protected Object createInterpreter() {
+                created.incrementAndGet();
+                return new CompilingEngine(compilations, "MULTITHREADED");
+            }
+        };
+        scripting.setScriptingEnabled(true);
+        // a new engine for every render
+        scripting.setInterpreterPoolSize(0);
+        final String template = "<bsh>a + b</bsh> <bsh>a+b</bsh> <bsh>b + a</bsh>";
+        final CompiledTemplate compiled = scripting.compile(template);
+        Map<String, Object> m = new HashMap<String, Object>();
+        for (int i = 0; i < 10; i++) {
+            m.put("a", i);
+            m.put("b", "-");
+            assertEquals(i + "- " + i + "- -" + i, scripting.format(template, m));
+            assertEquals(i + "- " + i + "- -" + i, compiled.render(m));
+        }
+        assertEquals(20, created.get());
+        assertEquals(3, compilations.get());
+
+        // engines without a threading model compile per interpreter
+        compilations.set(0);
+        final TemplateFormatter unsafe = new TemplateFormatter() {
+            @Override
+            protected Object createInterpreter() {
+                return new CompilingEngine(compilations, null);
+            }
+        };
+        unsafe.setScriptingEnabled(true);
+        unsafe.setInterpreterPoolSize(0);
+        for (int i = 0; i < 10; i++) {
+            m.put("a", i);
+            assertEquals(i + "- " + i + "- -" + i, unsafe.format(template, m));
+        }
+        assertEquals(30, compilations.get());
+    }
+
+    @Test
+    public void expressionScriptEngine() {
+        formatter.setScriptingEnabled(true);
+        formatter.setScriptEngineProvider(new ExpressionScriptEngineProvider());
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("foo", "bar");
+        m.put("p", new Precedence());
+
+        assertEquals("test:3-kurz", formatter.format("test:<bsh>return foo.length()</bsh>"
+                + "<bsh>if ( foo.length()>10 ) return \"-lang\"; else return \"-kurz\";</bsh>", m));
+        assertEquals("field method 43 true", formatter.format("<bsh>p.value</bsh> <bsh>p.value()</bsh> "
+                + "<bsh>p.number + 1</bsh> <bsh>!(p.flag && 2 * 3 % 4 >= 3) || p.nothing == null</bsh>", m));
+        assertEquals("${FOO} ${foo}", formatter.format("<bsh>{ 'x'; return '${foo}'.toUpperCase(); }</bsh> ${foo}",
+                Collections.<String, Object>emptyMap()));
+        assertEquals("7 -1.5 short", formatter.format("<bsh>1 + 2 * 3</bsh> <bsh>-3 / 2.0</bsh> "
+                + "<bsh>foo.length() > 5 ? 'long' : 'short'</bsh>", m));
+        assertEquals("[Script-Error: javax.script.ScriptException]", formatter.format("<bsh>return foo.size()</bsh>", m));
+        assertEquals("[Script-Error: javax.script.ScriptException]", formatter.format("<bsh>return (foo</bsh>", m));
+        assertEquals("[Script-Error: javax.script.ScriptException]", formatter.format("<bsh>bar</bsh>", m));
+
+        // properties resolve with the access settings of the formatter, like tokens
+        formatter.setFieldAccessEnabled(false);
+        assertEquals("getter getter", formatter.format("<bsh>p.value</bsh> ${p.value}", m));
+        formatter.setFormatBeanValues(false);
+        assertEquals("method method", formatter.format("<bsh>p.value</bsh> ${p.value}", m));
+        formatter.setMethodAccessEnabled(false);
+        assertEquals("[Script-Error: javax.script.ScriptException]", formatter.format("<bsh>p.value()</bsh>", m));
+        formatter.setFieldAccessEnabled(true);
+        assertEquals("field", formatter.format("<bsh>p.value</bsh>", m));
+
+        // other providers get the settings as well
+        formatter.setScriptEngineProvider(new ScriptEngineProvider() {
+            @Override
+            public PreparedScript prepare(final String script) {
+                return new PreparedScript() {
+                    @Override
+                    public Object eval(Map<String, Object> variables, TemplateFormatter evaluating) {
+                        return script + ": " + evaluating.isFormatFields() + " " + evaluating.isFormatMethods();
+                    }
+                };
+            }
+        });
+        assertEquals("settings: true false", formatter.format("<bsh>settings</bsh>", m));
+
+        formatter.setScriptEngineProvider(null);
+        assertEquals(null, formatter.getScriptEngineProvider());
+    }
+
+    @Test
+    public void jsr223ScriptEngine() {
+        CompilingEngine engine = new CompilingEngine();
+        formatter.setScriptingEnabled(true);
+        formatter.setScriptEngineProvider(new Jsr223ScriptEngineProvider(engine));
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("a", "x");
+        m.put("b", "y");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("xy yx", formatter.compile("<bsh>a + b</bsh> <bsh>b + a</bsh>").render(m));
+            assertEquals("xy", formatter.formatScripts("<bsh>a + b</bsh>", m));
+        }
+        assertEquals(2, engine.compilations.get());
+        assertEquals("[Script-Error: javax.script.ScriptException]", formatter.format("<bsh>!</bsh>", m));
+    }
+
+    @Test
+    public void renderAllInParallel() throws InterruptedException {
+        final List<Map<String, Object>> inputs = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> m = new HashMap<String, Object>();
+            m.put("i", i);
+            inputs.add(m);
+        }
+        final List<String> results = new ArrayList<String>();
+        Consumer<String> collect = new Consumer<String>() {
+            @Override
+            public void accept(String s) {
+                results.add(s);
+            }
+        };
+
+        assertEquals(1000, formatter.renderAll("#${i}", inputs, collect));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("#" + i, results.get(i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            results.clear();
+            assertEquals(1000, formatter.renderAll("#${i}", inputs.stream(), collect));
+            assertEquals("#999", results.get(999));
+
+            // unordered results, at most 3 inputs taken ahead of the consumer
+            results.clear();
+            final AtomicInteger taken = new AtomicInteger();
+            final int[] maxAhead = new int[1];
+            Iterable<Map<String, Object>> counting = new Iterable<Map<String, Object>>() {
+                @Override
+                public Iterator<Map<String, Object>> iterator() {
+                    final Iterator<Map<String, Object>> delegate = inputs.iterator();
+                    return new Iterator<Map<String, Object>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return delegate.hasNext();
+                        }
+
+                        @Override
+                        public Map<String, Object> next() {
+                            maxAhead[0] = Math.max(maxAhead[0], taken.incrementAndGet() - results.size());
+                            return delegate.next();
+                        }
+                    };
+                }
+            };
+            formatter.compile("#${i}").renderAll(counting, collect, executor, false, 3);
+            assertEquals(3, maxAhead[0]);
+            assertEquals(1000, new HashSet<String>(results).size());
+
+            // failures are passed to the caller
+            Map<String, Object> broken = new HashMap<String, Object>() {
+                @Override
+                public Object get(Object key) {
+                    throw new IllegalStateException("broken");
+                }
+            };
+            try {
+                formatter.renderAll("${a.b}", Arrays.asList(inputs.get(0), broken), collect, executor, true);
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("broken", e.getMessage());
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void builtFormatterIsImmutable() {
+        TemplateFormatter built = TemplateFormatter.builder().nullString("-").fieldAccess(false).scripting(true)
+                .scriptEngineProvider(new ExpressionScriptEngineProvider()).interpreterPoolSize(0).build();
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("p", new Precedence());
+        m.put("v", null);
+
+        assertTrue(built.isFrozen());
+        assertTrue(!formatter.isFrozen());
+        assertEquals("getter - 2", built.format("${p.value} ${v} <bsh>1 + 1</bsh>", m));
+        assertEquals(0, built.getInterpreterPoolSize());
+        assertTrue(built.getTemplateCache() != null);
+        assertEquals(null, TemplateFormatter.builder().templateCache(null).build().getTemplateCache());
+
+        try {
+            built.setNullString("x");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("-", built.getNullString());
+        }
+        try {
+            built.setFormatBeanValues(false);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(built.isFormatBeanValues());
+        }
+
+        // the defaults are taken when the builder is created
+        final String nullString = TemplateFormatter.DEFAULT_NULL_STRING;
+        final Boolean fields = TemplateFormatter.DEFAULT_FIELDS_ENABLED;
+        final Boolean scripting = TemplateFormatter.DEFAULT_BSH_ENABLED;
+        final TemplateFormatter.Builder builder = TemplateFormatter.builder()
+                .scriptEngineProvider(new ExpressionScriptEngineProvider());
+        try {
+            TemplateFormatter.DEFAULT_NULL_STRING = "changed";
+            TemplateFormatter.DEFAULT_FIELDS_ENABLED = !fields;
+            TemplateFormatter.DEFAULT_BSH_ENABLED = !scripting;
+            assertEquals("getter - 2 getter", built.format("${p.value} ${v} <bsh>1 + 1</bsh> <bsh>p.value</bsh>", m));
+            assertEquals("getter - 2 getter", built.formatCompiled("${p.value} ${v} <bsh>1 + 1</bsh> <bsh>p.value</bsh>", m));
+            final TemplateFormatter early = builder.build();
+            assertEquals(nullString, early.getNullString());
+            assertEquals(fields, early.isFormatFields());
+            assertEquals(scripting, early.isFormatScripts());
+            assertEquals("changed", new TemplateFormatter().getNullString());
+        } finally {
+            TemplateFormatter.DEFAULT_NULL_STRING = nullString;
+            TemplateFormatter.DEFAULT_FIELDS_ENABLED = fields;
+            TemplateFormatter.DEFAULT_BSH_ENABLED = scripting;
+        }
+    }
+
+    @Test
+    public void builtInValueFormattersMatchToString() {
+        Object[] values = {42, -7L, (short) 3, (byte) -1, 1.5d, Double.NaN, 0.1f, true, 'c', "text", new StringBuilder("sb"),
+                Thread.State.NEW, TimeUnit.SECONDS, LocalDate.of(2019, 3, 7), LocalDate.of(-44, 12, 31),
+                LocalDate.of(12345, 1, 1), LocalDate.of(7, 1, 1), LocalTime.of(9, 5), LocalTime.of(23, 59, 1),
+                LocalTime.of(1, 2, 3, 4000000), LocalTime.of(1, 2, 3, 4000), LocalTime.of(1, 2, 3, 4),
+                LocalDateTime.of(2019, 3, 7, 12, 0, 0, 120000000), Instant.ofEpochSecond(1551960000L, 5),
+                new Dimension(1, 2)};
+        for (Object value : values) {
+            StringBuilder text = new StringBuilder(">");
+            ValueFormatters.defaults().appendTo(text, value);
+            assertEquals(">" + value, text.toString());
+        }
+    }
+
+    @Test
+    public void customValueFormatting() throws IOException {
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("size", new Dimension(11, 12));
+        m.put("d", 1.5d);
+        m.put("v", null);
+
+        Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+        types.put("size", Dimension.class);
+        CompiledTemplate typed = formatter.compile("${size.width}x${size.height} ${d} ${v}", types);
+        assertEquals("11x12 1.5 <null>", typed.render(m));
+        StringWriter writer = new StringWriter();
+        typed.renderTo(m, writer);
+        assertEquals("11x12 1.5 <null>", writer.toString());
+
+        formatter.setValueFormatter(new ValueFormatter() {
+            @Override
+            public void appendTo(StringBuilder target, Object value) {
+                target.append('[');
+                ValueFormatters.defaults().appendTo(target, value);
+                target.append(']');
+            }
+        });
+        assertEquals("[11]x[12] [1.5] <null>", typed.render(m));
+        assertEquals("[11]", formatter.formatProperties("${size.width}", m));
+
+        TemplateFormatter overriding = new TemplateFormatter() {
+            @Override
+            protected String valueToString(String fulltoken, Object tokenValue) {
+                return fulltoken + '=' + tokenValue;
+            }
+        };
+        assertEquals("width=11 d=1.5", overriding.compile("${size.width} ${d}", types).render(m));
+    }
+
+    @Test
+    public void reuseRenderBuffers() {
+        final TemplateFormatter reusing = TemplateFormatter.builder().reuseRenderBuffers(true).valueFormatter(
+                new ValueFormatter() {
+                    @Override
+                    public void appendTo(StringBuilder target, Object value) {
+                        if (value instanceof Map) {
+                            // nested render on the same thread
+                            @SuppressWarnings("unchecked")
+                            Map<String, Object> nested = (Map<String, Object>) value;
+                            TemplateFormatter inner = TemplateFormatter.builder().reuseRenderBuffers(true).build();
+                            target.append(inner.formatCompiled("(${a})", nested));
+                        } else {
+                            ValueFormatters.defaults().appendTo(target, value);
+                        }
+                    }
+                }).build();
+        assertTrue(reusing.isReuseRenderBuffers());
+        Map<String, Object> inner = new HashMap<String, Object>();
+        inner.put("a", "x");
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("i", inner);
+
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            longText.append('y');
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals("<(x)>", reusing.formatCompiled("<${i}>", m));
+            assertEquals(longText.toString(), reusing.formatCompiled(longText.toString(), m));
+            m.put("t", i);
+            assertEquals("t=" + i, reusing.formatCompiled("t=${t}", m));
+        }
+    }
+
+    @Test
+    public void unresolvedPathPolicy() {
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("p", new Precedence());
+        String template = "[${missing}|${p.missing}|${p.bean.missing.length}|${p.nothing.length}|${p.bean}]";
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals("[${missing}|${p.missing}|${p.bean.missing.length}||getter]", formatter.formatCompiled(template, m));
+        }
+        assertEquals(UnresolvedPathPolicy.KEEP_TOKEN, formatter.getUnresolvedPathPolicy());
+        formatter.setUnresolvedPathPolicy(UnresolvedPathPolicy.EMPTY);
+        assertEquals("[||||getter]", formatter.formatCompiled(template, m));
+        formatter.setUnresolvedPathPolicy(UnresolvedPathPolicy.NULL_STRING);
+        formatter.setNullString("-");
+        assertEquals("[-|-|-||getter]", formatter.formatCompiled(template, m));
+        assertEquals("[-|-]", TemplateFormatter.builder().nullString("-").unresolvedPathPolicy(UnresolvedPathPolicy.NULL_STRING)
+                .build().formatCompiled("[${x}|${p.x}]", m));
+    }
+
+    @Test
+    public void mapAndRegisteredPropertyAccessors() {
+        Map<String, Object> address = new HashMap<String, Object>();
+        address.put("city", "Bonn");
+        address.put("size", "XL");
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("address", address);
+        m.put("p", new Precedence());
+
+        String template = "${address.city} ${address.size} ${address.isEmpty} ${address.city.length} ${p.bean} ${p.value}";
+        assertEquals("Bonn XL false 4 getter field", formatter.format(template, m));
+
+        final AtomicInteger calls = new AtomicInteger();
+        formatter.registerPropertyAccessor(Precedence.class, new PropertyAccessor<Precedence>() {
+            @Override
+            public Object get(Precedence target, String name) {
+                calls.incrementAndGet();
+                if ("value".equals(name)) {
+                    return "registered";
+                } else if ("broken".equals(name)) {
+                    throw new IllegalStateException(name);
+                }
+                return PropertyAccessor.UNRESOLVED;
+            }
+        });
+        assertEquals("Bonn XL false 4 getter registered", formatter.format(template, m));
+        assertEquals(2, calls.get());
+        assertEquals("${p.broken}", formatter.format("${p.broken}", m));
+
+        // typed paths on maps and registered types resolve just like untyped ones
+        Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+        types.put("address", Map.class);
+        types.put("p", Precedence.class);
+        assertEquals("Bonn XL false 4 getter registered", formatter.compile(template, types).render(m));
+
+        TemplateFormatter built = TemplateFormatter.builder().propertyAccessor(Object.class, new PropertyAccessor<Object>() {
+            @Override
+            public Object get(Object target, String name) {
+                return "*";
+            }
+        }).build();
+        assertEquals("* *", built.format("${address.city} ${p.value}", m));
+    }
+
+    @Test
+    public void templateAnalysis() {
+        Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+        types.put("p", Precedence.class);
+        types.put("any", Object.class);
+        String source = "Hi ${p.bean.length} ${p.missing} ${q} ${any.thing} ${a${b}}<bsh>${p.number}</bsh> ${open <bsh>x";
+        CompiledTemplate template = formatter.compile(source, types);
+
+        TemplateAnalysis analysis = template.getAnalysis();
+        assertEquals(Arrays.asList("${p.bean.length}", "${p.missing}", "${q}", "${any.thing}", "${b}", "${p.number}"),
+                analysis.getTokens());
+        assertEquals(Arrays.asList("${p.missing}", "${q}", "${b}"), analysis.getUnresolvedTokens());
+        assertEquals(Arrays.asList(source.indexOf("${a${"), source.indexOf("${open")), analysis.getUnclosedTokenPositions());
+        assertEquals(Arrays.asList("${p.number}"), analysis.getScriptBlocks());
+        assertEquals(source.lastIndexOf("<bsh>"), analysis.getUnclosedScriptPosition());
+        assertEquals(6, analysis.getProblems().size());
+        assertTrue(!analysis.isValid());
+
+        CompiledTemplate plain = formatter.compile("Dear ${name}, ${text}");
+        assertTrue(plain.getAnalysis().isValid());
+        assertEquals(7, plain.getAnalysis().getLiteralLength());
+        assertEquals(7 + 40, plain.getEstimatedSize());
+
+        // the estimate grows at once and shrinks slowly
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("name", "Sir");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 197; i++) {
+            text.append('.');
+        }
+        m.put("text", text);
+        assertEquals(207, plain.render(m).length());
+        assertEquals(7 + 250, plain.getEstimatedSize());
+        m.put("text", "");
+        plain.render(m);
+        assertEquals(7 + 220, plain.getEstimatedSize());
+    }
+
+    @Test
+    public void renderMetrics() throws IOException {
+        TemplateMetrics metrics = new TemplateMetrics(2);
+        TemplateFormatter measured = TemplateFormatter.builder().scripting(true).renderListener(metrics)
+                .scriptEngineProvider(new ExpressionScriptEngineProvider()).build();
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("p", new Precedence());
+        m.put("n", 3);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("42 getter 3", measured.formatCompiled("${p.number} ${p.bean} ${n}", m));
+        }
+        measured.format("<bsh>n + 1</bsh>", m, new StringWriter());
+        measured.formatCompiled("untracked", m);
+
+        TemplateMetrics.Stats stats = metrics.getStats("${p.number} ${p.bean} ${n}");
+        assertEquals(10, stats.getRenderCount());
+        assertEquals(11, stats.getMeanOutputLength());
+        assertEquals(20, stats.getReflectiveLookups());
+        assertEquals(0, stats.getScriptNanos());
+        assertTrue(stats.getPercentileNanos(0.5) > 0);
+        assertTrue(stats.getPercentileNanos(0.5) <= stats.getPercentileNanos(1.0));
+        assertEquals(stats.getMaxNanos(), stats.getPercentileNanos(1.0));
+
+        TemplateMetrics.Stats script = metrics.getStats("<bsh>n + 1</bsh>");
+        assertEquals(1, script.getRenderCount());
+        assertEquals(0, script.getMaxOutputLength());
+        assertTrue(script.getScriptNanos() > 0);
+        assertEquals(1, metrics.getUntrackedRenders());
+        List<TemplateMetrics.Stats> slowest = metrics.getSlowest(5);
+        assertEquals(2, slowest.size());
+        assertTrue(slowest.get(0).getTotalNanos() >= slowest.get(1).getTotalNanos());
+
+        // typed paths need no lookups
+        Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+        types.put("p", Precedence.class);
+        metrics.reset();
+        measured.compile("${p.number} ${p.bean} ${n}", types).render(m);
+        assertEquals(0, metrics.getStats("${p.number} ${p.bean} ${n}").getReflectiveLookups());
+        // ...unless the runtime type differs from the declared one
+        types.put("d", Dimension.class);
+        m.put("d", new Dimension(3, 4) {
+        });
+        assertEquals("3 4", measured.compile("${d.width} ${d.height}", types).render(m));
+        assertEquals(2, metrics.getStats("${d.width} ${d.height}").getReflectiveLookups());
+
+        // map keys and registered accessors are no reflective lookups
+        m.put("map", Collections.singletonMap("key", "value"));
+        metrics.reset();
+        measured.formatCompiled("${map.key} ${map.key.length}", m);
+        assertEquals(1, metrics.getStats("${map.key} ${map.key.length}").getReflectiveLookups());
+        TemplateFormatter registered = TemplateFormatter.builder().renderListener(metrics)
+                .propertyAccessor(Precedence.class, new PropertyAccessor<Precedence>() {
+                    @Override
+                    public Object get(Precedence target, String name) {
+                        return name;
+                    }
+                }).build();
+        metrics.reset();
+        assertEquals("number", registered.formatCompiled("${p.number}", m));
+        assertEquals(0, metrics.getStats("${p.number}").getReflectiveLookups());
+
+        // format() is reported as well, also when it falls back to the string replacement
+        m.put("a", "=${p.number}");
+        metrics.reset();
+        assertEquals("42 value", measured.format("${p.number} ${map.key}", m));
+        assertEquals("=42", measured.format("${a}", m));
+        assertEquals(1, metrics.getStats("${p.number} ${map.key}").getRenderCount());
+        assertEquals(1, metrics.getStats("${p.number} ${map.key}").getReflectiveLookups());
+        assertEquals(1, metrics.getStats("${a}").getRenderCount());
+        assertEquals(1, metrics.getStats("${a}").getReflectiveLookups());
+
+        for (long value : new long[]{0, 7, 8, 9, 10, 1000, 1023, 1024, Long.MAX_VALUE}) {
+            int bucket = TemplateMetrics.bucket(value);
+            assertTrue(value <= TemplateMetrics.bucketMax(bucket));
+            assertTrue(bucket == 0 || value > TemplateMetrics.bucketMax(bucket - 1));
+        }
+    }
+
+    @Test
+    public void incrementalRender() {
+        final AtomicInteger lookups = new AtomicInteger();
+        formatter.registerPropertyAccessor(Precedence.class, new PropertyAccessor<Precedence>() {
+            @Override
+            public Object get(Precedence target, String name) {
+                lookups.incrementAndGet();
+                return PropertyAccessor.UNRESOLVED;
+            }
+        });
+        CompiledTemplate template = formatter.compile("CPU ${cpu} %, ${p.number} / ${p.bean}, load ${load}.");
+        CompiledTemplate.Incremental dashboard = template.incremental(true);
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("cpu", 12);
+        m.put("p", new Precedence());
+        m.put("load", "low");
+        assertEquals("CPU 12 %, 42 / getter, load low.", dashboard.render(m));
+        assertEquals(2, lookups.get());
+
+        m.put("cpu", 7);
+        m.put("load", "high");
+        assertEquals("CPU 7 %, 42 / getter, load high.", dashboard.render(m));
+        m.put("cpu", 7);
+        m.put("load", new String("high"));
+        assertEquals("CPU 7 %, 42 / getter, load high.", dashboard.render(m));
+        m.remove("load");
+        assertEquals("CPU 7 %, 42 / getter, load ${load}.", dashboard.render(m));
+        assertEquals(2, lookups.get());
+
+        // explicitly passed changes
+        assertEquals("CPU 7 %, 42 / getter, load ${load}.", dashboard.render(m, Arrays.asList("p")));
+        assertEquals(4, lookups.get());
+        m.put("load", "none");
+        assertEquals("CPU 7 %, 42 / getter, load ${load}.", dashboard.render(m, Collections.<String>emptyList()));
+        assertEquals("CPU 7 %, 42 / getter, load none.", dashboard.render(m, Arrays.asList("load")));
+
+        // setting changes render everything
+        formatter.setUnresolvedPathPolicy(UnresolvedPathPolicy.EMPTY);
+        m.remove("load");
+        assertEquals("CPU 7 %, 42 / getter, load .", dashboard.render(m, Collections.<String>emptyList()));
+        assertEquals(6, lookups.get());
+        assertEquals(template.render(m), dashboard.render(m));
+        assertEquals(8, lookups.get());
+
+        // identity comparison
+        CompiledTemplate.Incremental byIdentity = template.incremental();
+        byIdentity.render(m);
+        m.put("p", new Precedence());
+        byIdentity.render(m);
+        assertEquals(12, lookups.get());
+    }
+
+    @Test
+    public void incrementalRenderWithoutChanges() {
+        TemplateMetrics metrics = new TemplateMetrics();
+        formatter.setRenderListener(metrics);
+        CompiledTemplate template = formatter.compile("CPU ${cpu} %, load ${load}, ${cpu}.");
+        CompiledTemplate.Incremental dashboard = template.incremental();
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("cpu", 12);
+        m.put("load", "low");
+        assertEquals("CPU 12 %, load low, 12.", dashboard.render(m));
+
+        // nothing changed: the same text, but still remembered and reported
+        String unchanged = dashboard.render(m, Collections.<String>emptyList());
+        assertSame(unchanged, dashboard.render(new HashMap<String, Object>(m)));
+        assertEquals(3, metrics.getStats(template.getTemplate()).getRenderCount());
+
+        m.put("cpu", 100);
+        assertEquals("CPU 100 %, load low, 100.", dashboard.render(m, Arrays.asList("cpu", "cpu")));
+        assertEquals(4, metrics.getStats(template.getTemplate()).getRenderCount());
+        assertEquals(25, metrics.getStats(template.getTemplate()).getMaxOutputLength());
+        m.put("load", "high");
+        assertEquals("CPU 100 %, load high, 100.", dashboard.render(m));
+    }
+
+    @Test
+    public void formatAsync() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CompletableFuture<String> slow = new CompletableFuture<String>();
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("name", slow);
+        m.put("count", new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                calls.incrementAndGet();
+                return 3;
+            }
+        });
+        m.put("unused", new Supplier<Object>() {
+            @Override
+            public Object get() {
+                throw new IllegalStateException("must not be resolved");
+            }
+        });
+        m.put("plain", new Precedence());
+
+        CompletableFuture<String> result = formatter.formatAsync("${name}: ${count} x ${plain.number}", m);
+        assertTrue(!result.isDone());
+        slow.complete("Alice");
+        assertEquals("Alice: 3 x 42", result.get(10, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(Collections.singleton("name"), formatter.compile("${name} ${name.length}").getObjectNames());
+
+        CompletableFuture<String> failing = new CompletableFuture<String>();
+        failing.completeExceptionally(new IOException("lookup failed"));
+        m.put("name", failing);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            formatter.formatAsync("${name}", m, executor).get(10, TimeUnit.SECONDS);
+            fail("failed lookup not reported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals("${x}", formatter.formatAsync("${x}", null).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void parameterResolver() throws IOException {
+        final List<String> resolved = new ArrayList<String>();
+        ParameterResolver resolver = new ParameterResolver() {
+            @Override
+            public Object resolve(String name) {
+                resolved.add(name);
+                if ("p".equals(name)) {
+                    return new Precedence();
+                } else if ("none".equals(name)) {
+                    return null;
+                }
+                return ParameterResolver.UNRESOLVED;
+            }
+        };
+        String template = "${p.number} ${none} ${missing} ${p.bean}";
+        assertEquals(new HashSet<String>(Arrays.asList("p", "none", "missing")), formatter.getObjectNames(template));
+        assertEquals("42 <null> ${missing} getter", formatter.formatWith(template, resolver));
+        assertEquals(Arrays.asList("p", "none", "missing"), resolved);
+
+        StringWriter out = new StringWriter();
+        formatter.compile("<${p.flag}>").renderWith(resolver, out);
+        assertEquals("<true>", out.toString());
+    }
+
+    @Test
+    public void propertyAccessOrder() {
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("p", new Precedence());
+        assertEquals("field getter method static 42 true", formatter.format(
+                "${p.value} ${p.bean} ${p.plain} ${p.constant} ${p.number} ${p.flag}", m));
+
+        formatter.setFieldAccessEnabled(false);
+        assertEquals("getter", formatter.format("${p.value}", m));
+        formatter.setFormatBeanValues(false);
+        assertEquals("method", formatter.format("${p.value}", m));
+        formatter.setMethodAccessEnabled(false);
+        assertEquals("${p.value}", formatter.compile("${p.value}").render(m));
+    }
+
+    public static final class Precedence {
+        public final String value = "field";
+
+        public static String constant() {
+            return "static";
+        }
+
+        public String getValue() {
+            return "getter";
+        }
+
+        public String value() {
+            return "method";
+        }
+
+        public String getBean() {
+            return "getter";
+        }
+
+        public String plain() {
+            return "method";
+        }
+
+        public int getNumber() {
+            return 42;
+        }
+
+        public boolean isFlag() {
+            return true;
+        }
+
+        public Object getNothing() {
+            return null;
+        }
+    }
+
+    /**
+     * Stand-in for the BeanShell interpreter. Evaluates <code>vars</code> to the currently set variables, assigns variables
+     * like <code>a = b</code> and fails otherwise.
+     */
+    public static final class StandInInterpreter {
+        final Map<String, Object> variables = new TreeMap<String, Object>();
+
+        public void set(String name, Object value) {
+            variables.put(name, value);
+        }
+
+        public void unset(String name) {
+            variables.remove(name);
+        }
+
+        public Object eval(String script) {
+            if ("vars".equals(script)) {
+                return variables.entrySet().toString();
+            }
+            String[] assignment = script.split(" = ");
+            if (assignment.length == 2) {
+                variables.put(assignment[0], variables.get(assignment[1]));
+                return variables.get(assignment[0]);
+            }
+            throw new IllegalArgumentException(script);
+        }
+    }
+
+    /**
+     * Stand-in for a compiling JSR-223 engine. Scripts concatenate variables: <code>a + b</code>
+     */
+    private static final class CompilingEngine extends AbstractScriptEngine implements Compilable {
+        final AtomicInteger compilations;
+        /**
+         * The <code>THREADING</code> parameter of the factory, no factory if <code>null</code>
+         */
+        private final String threading;
+
+        CompilingEngine() {
+            this(new AtomicInteger(), null);
+        }
+
+        CompilingEngine(AtomicInteger compilations, String threading) {
+            this.compilations = compilations;
+            this.threading = threading;
+        }
+
+        @Override
+        public CompiledScript compile(String script) throws ScriptException {
+            compilations.incrementAndGet();
+            if (!script.matches("[\\w\\s+]+")) {
+                throw new ScriptException("Syntax error: " + script);
+            }
+            final String[] variables = script.split("\\+");
+            return new CompiledScript() {
+                @Override
+                public Object eval(ScriptContext context) {
+                    StringBuilder result = new StringBuilder();
+                    for (String variable : variables) {
+                        result.append(context.getAttribute(variable.trim()));
+                    }
+                    return result.toString();
+                }
+
+                @Override
+                public ScriptEngine getEngine() {
+                    return CompilingEngine.this;
+                }
+            };
+        }
+
+        @Override
+        public CompiledScript compile(Reader script) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object eval(String script, ScriptContext context) throws ScriptException {
+            return compile(script).eval(context);
+        }
+
+        @Override
+        public Object eval(Reader reader, ScriptContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Bindings createBindings() {
+            return new SimpleBindings();
+        }
+
+        @Override
+        public ScriptEngineFactory getFactory() {
+            return threading != null ? new CompilingEngineFactory(threading) : null;
+        }
+    }
+
+    private static final class CompilingEngineFactory implements ScriptEngineFactory {
+        private final String threading;
+
+        CompilingEngineFactory(String threading) {
+            this.threading = threading;
+        }
+
+        @Override
+        public Object getParameter(String key) {
+            return "THREADING".equals(key) ? threading : null;
+        }
+
+        @Override
+        public String getEngineName() {
+            return "compiling";
+        }
+
+        @Override
+        public String getEngineVersion() {
+            return "1";
+        }
+
+        @Override
+        public List<String> getExtensions() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<String> getMimeTypes() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<String> getNames() {
+            return Collections.singletonList("compiling");
+        }
+
+        @Override
+        public String getLanguageName() {
+            return "concatenation";
+        }
+
+        @Override
+        public String getLanguageVersion() {
+            return "1";
+        }
+
+        @Override
+        public String getMethodCallSyntax(String obj, String m, String... args) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getOutputStatement(String toDisplay) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getProgram(String... statements) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScriptEngine getScriptEngine() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class StandInFormatter extends TemplateFormatter {
+        int created;
+        StandInInterpreter lastCreated;
+
+        @Override
+        protected Object createInterpreter() {
+            created++;
+            lastCreated = new StandInInterpreter();
+            return lastCreated;
+        }
+
+        @Override
+        protected Method getInterpreterSetMethod() throws NoSuchMethodException {
+            return StandInInterpreter.class.getMethod("set", String.class, Object.class);
+        }
+
+        @Override
+        protected Method getInterpreterUnsetMethod() throws NoSuchMethodException {
+            return StandInInterpreter.class.getMethod("unset", String.class);
+        }
+
+        @Override
+        protected Method getInterpreterEvalMethod() throws NoSuchMethodException {
+            return StandInInterpreter.class.getMethod("eval", String.class);
+        }
+
+        @Override
+        protected boolean resetInterpreter(Object interpreter) {
+            ((StandInInterpreter) interpreter).variables.clear();
+            return true;
+        }
+    }
+
     private static final class BMethod {
         public String b() {
             throw new UnsupportedOperationException();
         }
     }
 
+    public static final class Counter {
+        private int next;
+
+        public String getName() {
+            return "counter";
+        }
+
+        public int getNext() {
+            return next++;
+        }
+
+        public Object getNothing() {
+            return null;
+        }
+    }
+
     private static final class VoidMethod {
         public void v() {
         }